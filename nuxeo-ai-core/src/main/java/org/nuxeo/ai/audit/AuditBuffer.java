@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2022 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Nuxeo
+ */
+package org.nuxeo.ai.audit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.audit.api.AuditLogger;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * A bounded buffer in front of the {@link AuditLogger}.
+ * <p>
+ * Entries are written in batches by a background thread, when a batch is full or when the flush interval elapses.
+ * When the buffer is full the caller flushes it. A batch that fails to be written is kept and written first by the next
+ * flush, a flush on the caller thread rethrows the failure. Entries added once the buffer is closed are written
+ * directly.
+ */
+public class AuditBuffer {
+
+    public static final String AUDIT_BUFFER_CAPACITY = "nuxeo.ai.audit.buffer.capacity";
+
+    public static final String AUDIT_BUFFER_BATCH_SIZE = "nuxeo.ai.audit.buffer.batchSize";
+
+    public static final String AUDIT_BUFFER_FLUSH_INTERVAL = "nuxeo.ai.audit.buffer.flushInterval.ms";
+
+    public static final long DEFAULT_CAPACITY = 10_000;
+
+    public static final long DEFAULT_BATCH_SIZE = 100;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final Logger log = LogManager.getLogger(AuditBuffer.class);
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final BlockingQueue<LogEntry> queue;
+
+    protected final int batchSize;
+
+    protected final ScheduledExecutorService flusher;
+
+    protected final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    protected final Timer flushTime;
+
+    /**
+     * The entries of a failed flush, written first by the next flush, guarded by this.
+     */
+    protected final List<LogEntry> unwritten = new ArrayList<>();
+
+    protected volatile int unwrittenCount;
+
+    protected volatile boolean closed;
+
+    public AuditBuffer(int capacity, int batchSize, long flushInterval) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushTime = registry.timer(MetricRegistry.name(getMetricsName(), "flushTime"));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder().namingPattern("ai-audit-flush-%d").daemon(true).build());
+        flusher.scheduleWithFixedDelay(this::flushInBackground, flushInterval, flushInterval, MILLISECONDS);
+    }
+
+    /**
+     * Adds an entry to the buffer, the entry is written asynchronously.
+     */
+    public void add(LogEntry entry) {
+        if (closed) {
+            write(Collections.singletonList(entry));
+            return;
+        }
+        while (!queue.offer(entry)) {
+            // The buffer is full, write on the caller thread to apply back pressure
+            flush();
+        }
+        if (queue.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushRequested.set(false);
+                    flushInBackground();
+                });
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes all the buffered entries, starting with the entries of a previous failed flush.
+     *
+     * @throws RuntimeException the write failure, the failed batch is kept for the next flush
+     */
+    public synchronized void flush() {
+        List<LogEntry> batch = new ArrayList<>(unwritten);
+        unwritten.clear();
+        unwrittenCount = 0;
+        while (!batch.isEmpty() || queue.drainTo(batch, batchSize) > 0) {
+            try {
+                write(batch);
+            } catch (RuntimeException e) {
+                unwritten.addAll(batch);
+                unwrittenCount = unwritten.size();
+                throw e;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Flushes on the background thread, a failure is retried by the next scheduled flush.
+     */
+    protected void flushInBackground() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("Unable to write the audit entries, {} entries are kept for the next flush", size(), e);
+        }
+    }
+
+    /**
+     * Gets the number of entries waiting to be written.
+     */
+    public int size() {
+        return queue.size() + unwrittenCount;
+    }
+
+    protected void write(List<LogEntry> batch) {
+        AuditLogger audit = Framework.getService(AuditLogger.class);
+        if (audit == null) {
+            throw new NuxeoException("Audit Logger is not available");
+        }
+        try (Timer.Context ignored = flushTime.time()) {
+            audit.addLogEntries(batch);
+        }
+    }
+
+    /**
+     * Stops the background thread and writes the remaining entries, the entries added afterwards are written directly.
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        flusher.shutdown();
+        if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Audit flush did not complete in time");
+            flusher.shutdownNow();
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Unable to write {} audit entries on close", size(), e);
+        }
+    }
+
+    /**
+     * Registers the queue depth gauge within the shared registry, the flush latency timer is always registered.
+     */
+    public void register() {
+        registry.remove(MetricRegistry.name(getMetricsName(), "queueDepth"));
+        registry.register(MetricRegistry.name(getMetricsName(), "queueDepth"), (Gauge<Integer>) this::size);
+    }
+
+    /**
+     * Removes the metrics from the shared registry.
+     */
+    public void unregister() {
+        String name = getMetricsName();
+        registry.removeMatching((metricName, metric) -> metricName.toString().startsWith(name));
+    }
+
+    protected String getMetricsName() {
+        return MetricRegistry.name("nuxeo.ai", "audit", "buffer").toString();
+    }
+}
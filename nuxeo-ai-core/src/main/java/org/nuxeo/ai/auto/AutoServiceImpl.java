@@ -19,21 +19,25 @@
 package org.nuxeo.ai.auto;
 
 import static org.nuxeo.ai.auto.AutoService.AUTO_ACTION.ALL;
+import static org.nuxeo.ai.auto.AutoService.AUTO_ACTION.CORRECT;
+import static org.nuxeo.ai.auto.AutoService.AUTO_ACTION.FILL;
 import static org.nuxeo.ai.enrichment.EnrichmentProvider.UNSET;
 import static org.nuxeo.ai.services.DocMetadataServiceImpl.hadBeenModified;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
-import java.util.function.BinaryOperator;
 import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.AIConstants.AUTO;
+import org.nuxeo.ai.configuration.ThresholdIndex.DocumentThresholds;
 import org.nuxeo.ai.configuration.ThresholdService;
+import org.nuxeo.ai.configuration.Thresholds;
 import org.nuxeo.ai.metadata.AIMetadata;
 import org.nuxeo.ai.metadata.SuggestionMetadataWrapper;
 import org.nuxeo.ai.services.DocMetadataService;
@@ -63,160 +67,103 @@ public class AutoServiceImpl implements AutoService {
     @Override
     public void calculateProperties(DocumentModel doc, AUTO_ACTION action) {
         SuggestionMetadataWrapper wrapper = new SuggestionMetadataWrapper(doc);
-        for (String xpath : wrapper.getAutoProperties()) {
-            switch (action) {
-            case ALL:
-                calculateAutoFill(wrapper, xpath);
-                calculateAutoCorrect(wrapper, xpath);
-                break;
-            case CORRECT:
-                calculateAutoCorrect(wrapper, xpath);
-                break;
-            case FILL:
-                calculateAutoFill(wrapper, xpath);
-            }
+        if (wrapper.getAutoProperties().isEmpty()) {
+            return;
         }
-    }
 
-    protected boolean canApplyProperty(DocumentModel input, String property) {
-        if (getSchemaManager().getField(property) == null) {
-            if (input != null) {
-                log.debug("Document {} of type {} does not contain property {}", input.getId(), input.getType(),
-                        property);
+        DocumentThresholds thresholds = Framework.getService(ThresholdService.class).getThresholds(doc);
+        List<AutoChange> plan = new ArrayList<>();
+        for (String xpath : wrapper.getAutoProperties()) {
+            if (xpath.startsWith(UNSET)) {
+                // Nothing to do, no property specified
+                continue;
+            }
+            Thresholds threshold = thresholds.get(xpath);
+            List<SuggestionMetadataWrapper.PropertyHolder> holders = wrapper.getSuggestionsByProperty(xpath);
+            boolean filled = false;
+            if (action != CORRECT) {
+                filled = planAutoFill(wrapper, xpath, holders, threshold.getAutoFillThreshold(), plan);
+            }
+            if (action != FILL && !filled) {
+                planAutoCorrect(wrapper, xpath, holders, threshold.getAutoCorrectThreshold(), plan);
             }
-            return false;
-        }
-        String prefix = getSchemaManager().getField(property).getName().getPrefix();
-        Schema schema = getSchemaManager().getSchemaFromPrefix(prefix);
-        if (schema != null && input.hasSchema(schema.getName())) {
-            return true;
-        }
-        if (log.isDebugEnabled() && schema != null) {
-            log.debug("Document {} of type {} does not contain schema {}", input.getId(), input.getType(),
-                    schema.getSchemaName());
-        } else {
-            log.error("No such schema from prefix {}", prefix);
-        }
-
-        return false;
-    }
-
-    protected SchemaManager getSchemaManager() {
-        if (schemaManager == null) {
-            schemaManager = Framework.getService(SchemaManager.class);
         }
-
-        return schemaManager;
+        applyChanges(doc, plan);
     }
 
-    protected void calculateAutoFill(SuggestionMetadataWrapper docMetadata, String xpath) {
-        if (xpath.startsWith(UNSET)) {
-            // Nothing to do, no property specified
-            return;
-        }
-        float threshold = Framework.getService(ThresholdService.class)
-                                   .getAutoFillThreshold(docMetadata.getDoc(), xpath);
+    /**
+     * Adds the autofill change of a property to the plan.
+     *
+     * @return true if the property is going to be auto filled
+     */
+    protected boolean planAutoFill(SuggestionMetadataWrapper docMetadata, String xpath,
+            List<SuggestionMetadataWrapper.PropertyHolder> suggestions, float threshold, List<AutoChange> plan) {
         if (threshold > 1 || threshold <= 0) {
             // Impossible threshold
-            return;
+            return false;
         }
         DocumentModel doc = docMetadata.getDoc();
         if (!canApplyProperty(doc, xpath)) {
-            return;
+            return false;
         }
 
         boolean alreadyAutofilled = docMetadata.isAutoFilled(xpath);
         if (!alreadyAutofilled && docMetadata.hasValue(xpath)) {
-            log.debug("Unable to autofill property {} for doc {} because it has a value.", xpath,
-                    docMetadata.getDoc().getId());
-            return;
+            log.debug("Unable to autofill property {} for doc {} because it has a value.", xpath, doc.getId());
+            return false;
         }
 
-        List<SuggestionMetadataWrapper.PropertyHolder> modelSuggestions = docMetadata.getSuggestionsByProperty(xpath);
-
-        boolean autofilled = false;
-        Property property = doc.getProperty(xpath);
-        if (property.isList()) {
-            SuggestionMetadataWrapper.PropertyHolder reduce = modelSuggestions.stream()
-                                                                              .reduce(reduceLabels(threshold))
-                                                                              .orElse(null);
-            if (reduce != null) {
-                List<String> values = reduce.getLabels()
-                                            .stream()
-                                            .filter(label -> label.getConfidence() >= threshold)
-                                            .map(AIMetadata.Label::getName)
-                                            .collect(Collectors.toList());
-                doc.setPropertyValue(xpath, (Serializable) values);
-                String comment = String.format("Auto filled a list %s. (Threshold %s)", xpath, threshold);
-                log.debug(comment);
-
-                Framework.getService(DocMetadataService.class)
-                         .updateAuto(docMetadata.getDoc(), AUTO.FILLED, xpath, reduce.getModel(), null, comment);
-                docMetadata.addAutoFilled(xpath, reduce.getModel());
-                autofilled = true;
-            }
-        } else {
-            SuggestionMetadataWrapper.PropertyHolder reduce = modelSuggestions.stream()
-                                                                              .reduce(reduceLabels(threshold))
-                                                                              .orElse(null);
-            if (reduce != null) {
-                AIMetadata.Label max = calculateMaxLabel(reduce.getLabels(), threshold);
-                if (max != null) {
-                    float maxConfidence = max.getConfidence();
-
-                    if (setProperty(doc.getCoreSession(), doc, xpath, null, max.getName())) {
-                        String comment = String.format("Auto filled %s. (Confidence %s , Threshold %s)", xpath,
-                                maxConfidence, threshold);
-                        log.debug(comment);
-
-                        Framework.getService(DocMetadataService.class)
-                                 .updateAuto(docMetadata.getDoc(), AUTO.FILLED, xpath, reduce.getModel(), null,
-                                         comment);
-                        docMetadata.addAutoFilled(xpath, reduce.getModel());
-                        autofilled = true;
-                    }
-                }
-            }
+        Selection selection = select(suggestions, threshold);
+        AutoChange change = null;
+        if (selection != null && doc.getProperty(xpath).isList()) {
+            List<String> values = selection.holder.getLabels()
+                                                  .stream()
+                                                  .filter(label -> label.getConfidence() >= threshold)
+                                                  .map(AIMetadata.Label::getName)
+                                                  .collect(Collectors.toList());
+            String comment = String.format("Auto filled a list %s. (Threshold %s)", xpath, threshold);
+            change = new AutoChange(AUTO.FILLED, xpath, selection.holder.getModel(), (Serializable) values, true,
+                    null, comment);
+        } else if (selection != null && selection.max != null) {
+            String comment = String.format("Auto filled %s. (Confidence %s , Threshold %s)", xpath,
+                    selection.max.getConfidence(), threshold);
+            change = new AutoChange(AUTO.FILLED, xpath, selection.holder.getModel(), selection.max.getName(), false,
+                    null, comment);
         }
 
-        if (!autofilled && alreadyAutofilled) {
+        if (change != null) {
+            // We autofilled before so a failure to set the value resets it
+            change.resetOnFailure = alreadyAutofilled;
+            plan.add(change);
+            return true;
+        }
+        if (alreadyAutofilled) {
             // We autofilled but now the value didn't autofill so lets reset it
-            Framework.getService(DocMetadataService.class).resetAuto(docMetadata.getDoc(), AUTO.FILLED, xpath, true);
+            plan.add(AutoChange.reset(AUTO.FILLED, xpath));
         }
+        return false;
     }
 
-    private BinaryOperator<SuggestionMetadataWrapper.PropertyHolder> reduceLabels(float threshold) {
-        return (o1, o2) -> {
-            AIMetadata.Label maxO1 = calculateMaxLabel(o1.getLabels(), threshold);
-            AIMetadata.Label maxO2 = calculateMaxLabel(o2.getLabels(), threshold);
-            if (maxO1 == null || maxO2 == null) {
-                return maxO1 == null ? o2 : o1;
-            }
-
-            return maxO1.getConfidence() > maxO2.getConfidence() ? o1 : o2;
-        };
-    }
-
-    protected void calculateAutoCorrect(SuggestionMetadataWrapper metadata, String xpath) {
-        if (xpath.startsWith(UNSET) || metadata.isAutoFilled(xpath)) {
+    /**
+     * Adds the autocorrect change of a property to the plan.
+     */
+    protected void planAutoCorrect(SuggestionMetadataWrapper metadata, String xpath,
+            List<SuggestionMetadataWrapper.PropertyHolder> suggestions, float threshold, List<AutoChange> plan) {
+        if (metadata.isAutoFilled(xpath)) {
             // Nothing to do
             return;
         }
-        float threshold = Framework.getService(ThresholdService.class)
-                                   .getAutoCorrectThreshold(metadata.getDoc(), xpath);
         if (threshold > 1 || threshold <= 0) {
             // Impossible threshold
             return;
         }
 
-        DocMetadataService metadataService = Framework.getService(DocMetadataService.class);
         DocumentModel doc = metadata.getDoc();
         if (!canApplyProperty(doc, xpath)) {
             return;
         }
 
         Property property;
-        boolean alreadyAutoCorrected = metadata.isAutoCorrected(xpath);
         try {
             property = doc.getProperty(xpath);
         } catch (PropertyNotFoundException e) {
@@ -224,35 +171,100 @@ public class AutoServiceImpl implements AutoService {
             return;
         }
 
-        SuggestionMetadataWrapper.PropertyHolder reduce = metadata.getSuggestionsByProperty(xpath)
-                                                                  .stream()
-                                                                  .reduce(reduceLabels(threshold))
-                                                                  .orElse(null);
-        AIMetadata.Label max = null;
-        if (reduce != null) {
-            max = calculateMaxLabel(reduce.getLabels(), threshold);
-        }
-
-        if (max != null) {
+        Selection selection = select(suggestions, threshold);
+        if (selection != null && selection.max != null) {
             Serializable oldValue = property.getValue();
-            if (setProperty(doc.getCoreSession(), doc, xpath, oldValue, max.getName())) {
+            if (!selection.max.getName().equals(oldValue)) {
                 String comment = String.format("Auto corrected %s. (Confidence %s , Threshold %s)", xpath,
-                        max.getConfidence(), threshold);
-                log.debug(comment);
-                if (alreadyAutoCorrected) {
-                    // We already auto corrected so we don't need to save the value in the history
-                    oldValue = null;
-                }
+                        selection.max.getConfidence(), threshold);
+                // We already auto corrected so we don't need to save the value in the history
+                Serializable history = metadata.isAutoCorrected(xpath) ? null : oldValue;
+                plan.add(new AutoChange(AUTO.CORRECTED, xpath, selection.holder.getModel(), selection.max.getName(),
+                        false, history, comment));
+            }
+        } else if (metadata.isAutoCorrected(xpath)) {
+            // We auto corrected but now the value didn't auto correct so lets reset it
+            plan.add(AutoChange.reset(AUTO.CORRECTED, xpath));
+        }
+    }
 
-                metadataService.updateAuto(metadata.getDoc(), AUTO.CORRECTED, xpath, reduce.getModel(), oldValue,
-                        comment);
+    /**
+     * Applies the planned changes to the document, the caller is responsible for saving it.
+     */
+    protected void applyChanges(DocumentModel doc, List<AutoChange> plan) {
+        if (plan.isEmpty()) {
+            return;
+        }
+        DocMetadataService metadataService = Framework.getService(DocMetadataService.class);
+        for (AutoChange change : plan) {
+            if (change.reset) {
+                metadataService.resetAuto(doc, change.field, change.xpath, true);
+                continue;
             }
-        } else {
-            if (alreadyAutoCorrected) {
-                // We auto corrected but now the value didn't auto correct so lets reset it
-                metadataService.resetAuto(metadata.getDoc(), AUTO.CORRECTED, xpath, true);
+            boolean applied;
+            if (change.list) {
+                doc.setPropertyValue(change.xpath, change.value);
+                applied = true;
+            } else {
+                applied = setProperty(doc.getCoreSession(), doc, change.xpath, null, (String) change.value);
+            }
+            if (applied) {
+                log.debug(change.comment);
+                metadataService.updateAuto(doc, change.field, change.xpath, change.model, change.oldValue,
+                        change.comment);
+            } else if (change.resetOnFailure) {
+                metadataService.resetAuto(doc, change.field, change.xpath, true);
+            }
+        }
+    }
+
+    /**
+     * Selects the suggestion having the label with the highest confidence over the threshold, each suggestion is
+     * looked at once.
+     *
+     * @return the selected suggestion and its best label; the label is null when no suggestion reaches the threshold
+     */
+    protected Selection select(List<SuggestionMetadataWrapper.PropertyHolder> suggestions, float threshold) {
+        Selection selected = null;
+        for (SuggestionMetadataWrapper.PropertyHolder holder : suggestions) {
+            AIMetadata.Label max = calculateMaxLabel(holder.getLabels(), threshold);
+            if (selected == null || selected.max == null
+                    || (max != null && max.getConfidence() >= selected.max.getConfidence())) {
+                selected = new Selection(holder, max);
+            }
+        }
+        return selected;
+    }
+
+    protected boolean canApplyProperty(DocumentModel input, String property) {
+        if (getSchemaManager().getField(property) == null) {
+            if (input != null) {
+                log.debug("Document {} of type {} does not contain property {}", input.getId(), input.getType(),
+                        property);
             }
+            return false;
+        }
+        String prefix = getSchemaManager().getField(property).getName().getPrefix();
+        Schema schema = getSchemaManager().getSchemaFromPrefix(prefix);
+        if (schema != null && input.hasSchema(schema.getName())) {
+            return true;
+        }
+        if (log.isDebugEnabled() && schema != null) {
+            log.debug("Document {} of type {} does not contain schema {}", input.getId(), input.getType(),
+                    schema.getSchemaName());
+        } else {
+            log.error("No such schema from prefix {}", prefix);
+        }
+
+        return false;
+    }
+
+    protected SchemaManager getSchemaManager() {
+        if (schemaManager == null) {
+            schemaManager = Framework.getService(SchemaManager.class);
         }
+
+        return schemaManager;
     }
 
     protected boolean setProperty(CoreSession session, DocumentModel doc, String key, Serializable currentValue,
@@ -299,4 +311,60 @@ public class AutoServiceImpl implements AutoService {
         metadataService.removeSuggestionsForTargetProperty(doc, xPath);
     }
 
+    /**
+     * A suggestion selected for a property with its best label.
+     */
+    protected static class Selection {
+
+        protected final SuggestionMetadataWrapper.PropertyHolder holder;
+
+        protected final AIMetadata.Label max;
+
+        protected Selection(SuggestionMetadataWrapper.PropertyHolder holder, AIMetadata.Label max) {
+            this.holder = holder;
+            this.max = max;
+        }
+    }
+
+    /**
+     * A planned change of an auto property.
+     */
+    protected static class AutoChange {
+
+        protected final AUTO field;
+
+        protected final String xpath;
+
+        protected final String model;
+
+        protected final Serializable value;
+
+        protected final boolean list;
+
+        protected final Serializable oldValue;
+
+        protected final String comment;
+
+        protected boolean reset;
+
+        protected boolean resetOnFailure;
+
+        protected AutoChange(AUTO field, String xpath, String model, Serializable value, boolean list,
+                Serializable oldValue, String comment) {
+            this.field = field;
+            this.xpath = xpath;
+            this.model = model;
+            this.value = value;
+            this.list = list;
+            this.oldValue = oldValue;
+            this.comment = comment;
+        }
+
+        protected static AutoChange reset(AUTO field, String xpath) {
+            AutoChange change = new AutoChange(field, xpath, null, null, false, null, null);
+            change.reset = true;
+            return change;
+        }
+    }
+
 }
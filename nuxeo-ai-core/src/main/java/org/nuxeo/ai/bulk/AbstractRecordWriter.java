@@ -22,10 +22,14 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.nuxeo.ai.enrichment.EnrichmentUtils.getBlobFromProvider;
 import static org.nuxeo.ai.enrichment.EnrichmentUtils.optionAsInteger;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.pipes.streams.Initializable;
@@ -61,6 +65,19 @@ public abstract class AbstractRecordWriter implements RecordWriter, Initializabl
 
     protected String blobProviderName;
 
+    /**
+     * Output streams not used for this long are closed, the reference to their record file has expired.
+     */
+    protected static final long OUTPUT_IDLE_MS = DEFAULT_BLOB_TTL_SEC * 1000L;
+
+    /**
+     * Output streams kept open for the whole export, keyed by id. They are closed by {@link #complete(String)}, or
+     * once idle for {@link #OUTPUT_IDLE_MS} when the export never completes.
+     */
+    protected final Map<String, DataOutputStream> outputs = new ConcurrentHashMap<>();
+
+    protected final Map<String, Long> outputsLastUse = new ConcurrentHashMap<>();
+
     public AbstractRecordWriter(String name) {
         this.name = name;
     }
@@ -71,12 +88,14 @@ public abstract class AbstractRecordWriter implements RecordWriter, Initializabl
 
     @Override
     public void init(Map<String, String> options) {
+        close();
         this.bufferSize = optionAsInteger(options, BUFFER_SIZE_OPT, DEFAULT_BUFFER_SIZE);
         this.blobProviderName = options.get(BLOB_PROVIDER_OPT);
     }
 
     @Override
     public Optional<Blob> complete(String id) throws IOException {
+        closeOutput(id);
         KeyValueStore kvStore = Framework.getService(KeyValueService.class).getKeyValueStore(RECORD_STREAM_KV);
         String filename = kvStore.getString(makeKey(id, name));
         if (filename != null && isNotBlank(blobProviderName)) {
@@ -137,6 +156,74 @@ public abstract class AbstractRecordWriter implements RecordWriter, Initializabl
 
     }
 
+    /**
+     * Gets the output stream for this id. The stream is opened on first use and kept open until the writer
+     * completes, callers writing from several threads must synchronize on it.
+     */
+    protected DataOutputStream getOutput(String id) {
+        closeIdleOutputs();
+        outputsLastUse.put(id, System.currentTimeMillis());
+        return outputs.computeIfAbsent(id, key -> {
+            try {
+                FileOutputStream fos = new FileOutputStream(getFile(key), true);
+                return new DataOutputStream(new BufferedOutputStream(fos, bufferSize));
+            } catch (IOException e) {
+                throw new NuxeoException("Unable to open the record file for " + key, e);
+            }
+        });
+    }
+
+    /**
+     * Flushes and closes the output stream for this id, if any.
+     */
+    protected void closeOutput(String id) throws IOException {
+        outputsLastUse.remove(id);
+        DataOutputStream output = outputs.remove(id);
+        if (output != null) {
+            synchronized (output) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Flushes the output stream for this id, if any, so that the records written so far are on disk.
+     */
+    protected void flushOutput(String id) throws IOException {
+        DataOutputStream output = outputs.get(id);
+        if (output != null) {
+            synchronized (output) {
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * Closes the output streams of the exports that are no longer written, they may have failed or been terminated.
+     */
+    protected void closeIdleOutputs() {
+        long idleSince = System.currentTimeMillis() - OUTPUT_IDLE_MS;
+        outputsLastUse.forEach((id, lastUse) -> {
+            if (lastUse < idleSince) {
+                log.warn("Closing the idle record file output for {} {}", name, id);
+                closeQuietly(id);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        outputs.keySet().forEach(this::closeQuietly);
+    }
+
+    protected void closeQuietly(String id) {
+        try {
+            closeOutput(id);
+        } catch (IOException e) {
+            log.warn("Unable to close the record file output for {} {}", name, id, e);
+        }
+    }
+
     protected String sanitize(String name) {
         return name.replace("/", "-");
     }
@@ -36,6 +36,8 @@ public interface RecordWriter {
 
     /**
      * Write the records using this writer.  It is assumed that the implementation writes to a file.
+     * All the records have the same id, implementations should write them in one pass to the same file and mark the
+     * records they can't write as failed. It is preferred over writing the records one by one.
      * Returns the number of errors.
      */
     long write(List<ExportRecord> list) throws IOException;
@@ -47,4 +49,10 @@ public interface RecordWriter {
      */
     boolean exists(String id);
 
+    /**
+     * Releases the resources held by this writer, the files not completed yet are left as they are.
+     */
+    default void close() {
+    }
+
 }
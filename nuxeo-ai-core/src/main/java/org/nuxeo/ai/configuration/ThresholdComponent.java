@@ -21,12 +21,11 @@ package org.nuxeo.ai.configuration;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.configuration.ThresholdConfiguratorDescriptor.Threshold;
@@ -67,14 +66,20 @@ public class ThresholdComponent extends DefaultComponent implements ThresholdSer
 
     protected final Map<String, Map<String, Threshold>> typeThresholds = new HashMap<>();
 
+    /**
+     * Lookups are served from this index, it is rebuilt after each configuration change.
+     */
+    protected final AtomicReference<ThresholdIndex> index = new AtomicReference<>(buildIndex());
+
     @Override
-    public void reload(Descriptor desc) {
+    public synchronized void reload(Descriptor desc) {
         super.registerContribution(desc, THRESHOLD_CONFIGURATION_XP, null);
         this.fillThresholds((ThresholdConfiguratorDescriptor) desc);
+        index.set(buildIndex());
     }
 
     @Override
-    public void start(ComponentContext context) {
+    public synchronized void start(ComponentContext context) {
         super.start(context);
         PubSubService pubSubService = Framework.getService(PubSubService.class);
         if (pubSubService != null) {
@@ -103,96 +108,32 @@ public class ThresholdComponent extends DefaultComponent implements ThresholdSer
             ThresholdConfiguratorDescriptor descriptor = (ThresholdConfiguratorDescriptor) d;
             fillThresholds(descriptor);
         }
+        index.set(buildIndex());
     }
 
     @Override
     public float getThreshold(DocumentModel doc, String xpath) {
-        float result = -1.f;
-        final String docType = doc.getType();
-
-        Set<String> keys = typeThresholds.keySet();
-        if (keys.contains(docType)) {
-            Map<String, Threshold> typeTshlds = typeThresholds.get(docType);
-            if (typeTshlds.containsKey(xpath)) {
-                result = typeTshlds.get(xpath).getValue();
-            }
-        }
-
-        Set<String> facets = doc.getFacets();
-        boolean hasFacet = !Collections.disjoint(keys, facets);
-        if (hasFacet) {
-            for (String facet : facets) {
-                if (keys.contains(facet) && typeThresholds.get(facet).containsKey(xpath)) {
-                    result = Math.max(result, typeThresholds.get(facet).get(xpath).getValue());
-                }
-            }
-        }
-
-        if (result < 0.f && (typeDefaultThresholds.containsKey(docType) || hasFacet)) {
-            result = getThresholdFor(docType, facets);
-        }
-
-        return result > 0.f ? result : globalThreshold;
+        return getThresholds(doc, xpath).getThreshold();
     }
 
     @Override
     public float getAutoFillThreshold(DocumentModel doc, String xpath) {
-        float result = -1.f;
-        final String docType = doc.getType();
-
-        Set<String> keys = typeThresholds.keySet();
-        if (keys.contains(docType)) {
-            Map<String, Threshold> typeTshlds = typeThresholds.get(docType);
-            if (typeTshlds.containsKey(xpath)) {
-                result = typeTshlds.get(xpath).getAutofillValue();
-            }
-        }
-
-        Set<String> facets = doc.getFacets();
-        boolean hasFacet = !Collections.disjoint(keys, facets);
-        if (hasFacet) {
-            for (String facet : facets) {
-                if (keys.contains(facet) && typeThresholds.get(facet).containsKey(xpath)) {
-                    result = Math.max(result, typeThresholds.get(facet).get(xpath).getAutofillValue());
-                }
-            }
-        }
-
-        if (result < 0.f && (typeDefaultThresholds.containsKey(docType) || hasFacet)) {
-            result = getThresholdFor(docType, facets);
-        }
-
-        return result > 0.f ? result : globalAutofillThreshold;
+        return getThresholds(doc, xpath).getAutoFillThreshold();
     }
 
     @Override
     public float getAutoCorrectThreshold(DocumentModel doc, String xpath) {
-        String docType = doc.getType();
-        float result = -1.f;
-
-        Set<String> keys = typeThresholds.keySet();
-        if (keys.contains(docType)) {
-            Map<String, Threshold> typeTshlds = typeThresholds.get(docType);
-            if (typeTshlds.containsKey(xpath)) {
-                result = typeTshlds.get(xpath).getAutocorrect();
-            }
-        }
-
-        Set<String> facets = doc.getFacets();
-        boolean hasFacet = !Collections.disjoint(keys, facets);
-        if (hasFacet) {
-            for (String facet : facets) {
-                if (keys.contains(facet) && typeThresholds.get(facet).containsKey(xpath)) {
-                    result = Math.max(result, typeThresholds.get(facet).get(xpath).getAutocorrect());
-                }
-            }
-        }
+        return getThresholds(doc, xpath).getAutoCorrectThreshold();
+    }
 
-        if (result < 0.f && (typeDefaultThresholds.containsKey(docType) || hasFacet)) {
-            result = getThresholdFor(docType, facets);
-        }
+    @Override
+    public Thresholds getThresholds(DocumentModel doc, String xpath) {
+        return getThresholds(doc).get(xpath);
+    }
 
-        return result > 0.f ? result : globalAutocorrectThreshold;
+    @Override
+    public ThresholdIndex.DocumentThresholds getThresholds(DocumentModel doc) {
+        return index.get().get(doc.getType(), doc.getFacets());
     }
 
     protected void thresholdSubscriber(String topic, byte[] message) {
@@ -201,7 +142,10 @@ public class ThresholdComponent extends DefaultComponent implements ThresholdSer
         try {
             Descriptor desc = pcs.retrieve(contribKey);
             if (desc == null) {
-                this.typeThresholds.remove(contribKey);
+                synchronized (this) {
+                    this.typeThresholds.remove(contribKey);
+                    index.set(buildIndex());
+                }
             }
             if (desc instanceof ThresholdConfiguratorDescriptor) {
                 this.reload(desc);
@@ -247,12 +191,8 @@ public class ThresholdComponent extends DefaultComponent implements ThresholdSer
         });
     }
 
-    protected float getThresholdFor(String docType, Set<String> facets) {
-        float result;
-        result = typeDefaultThresholds.getOrDefault(docType, -1.f);
-        for (String f : facets) {
-            result = Math.max(result, typeDefaultThresholds.getOrDefault(f, -1.f));
-        }
-        return result;
+    protected ThresholdIndex buildIndex() {
+        return new ThresholdIndex(globalThreshold, globalAutofillThreshold, globalAutocorrectThreshold,
+                typeDefaultThresholds, typeThresholds);
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2022 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Nuxeo
+ */
+package org.nuxeo.ai.configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.nuxeo.ai.configuration.ThresholdConfiguratorDescriptor.Threshold;
+
+/**
+ * An immutable view of the threshold configuration.
+ * <p>
+ * The thresholds of every property are resolved once per document type and set of configured facets, then reused for
+ * all the documents sharing them. A new index is built whenever the configuration changes.
+ */
+public class ThresholdIndex {
+
+    protected final float globalThreshold;
+
+    protected final float globalAutofillThreshold;
+
+    protected final float globalAutocorrectThreshold;
+
+    protected final Map<String, Float> typeDefaultThresholds;
+
+    protected final Map<String, Map<String, Threshold>> typeThresholds;
+
+    protected final Map<String, DocumentThresholds> resolved = new ConcurrentHashMap<>();
+
+    public ThresholdIndex(float globalThreshold, float globalAutofillThreshold, float globalAutocorrectThreshold,
+            Map<String, Float> typeDefaultThresholds, Map<String, Map<String, Threshold>> typeThresholds) {
+        this.globalThreshold = globalThreshold;
+        this.globalAutofillThreshold = globalAutofillThreshold;
+        this.globalAutocorrectThreshold = globalAutocorrectThreshold;
+        this.typeDefaultThresholds = Collections.unmodifiableMap(new HashMap<>(typeDefaultThresholds));
+        Map<String, Map<String, Threshold>> copy = new HashMap<>();
+        typeThresholds.forEach(
+                (type, thresholds) -> copy.put(type, Collections.unmodifiableMap(new HashMap<>(thresholds))));
+        this.typeThresholds = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Gets the thresholds of all the properties for a document type and its facets.
+     */
+    public DocumentThresholds get(String docType, Set<String> facets) {
+        // Only the facets having a configuration change the result
+        Set<String> configuredFacets = new TreeSet<>();
+        for (String facet : facets) {
+            if (typeThresholds.containsKey(facet) || typeDefaultThresholds.containsKey(facet)) {
+                configuredFacets.add(facet);
+            }
+        }
+        String key = configuredFacets.isEmpty() ? docType : docType + ':' + String.join(",", configuredFacets);
+        return resolved.computeIfAbsent(key, k -> resolve(docType, configuredFacets));
+    }
+
+    protected DocumentThresholds resolve(String docType, Set<String> facets) {
+        List<Map<String, Threshold>> facetThresholds = new ArrayList<>();
+        for (String facet : facets) {
+            if (typeThresholds.containsKey(facet)) {
+                facetThresholds.add(typeThresholds.get(facet));
+            }
+        }
+        Map<String, Threshold> docTypeThresholds = typeThresholds.getOrDefault(docType, Collections.emptyMap());
+
+        boolean hasFacet = !facetThresholds.isEmpty();
+        float typeDefault = -1.f;
+        if (typeDefaultThresholds.containsKey(docType) || hasFacet) {
+            typeDefault = typeDefaultThresholds.getOrDefault(docType, -1.f);
+            for (String facet : facets) {
+                typeDefault = Math.max(typeDefault, typeDefaultThresholds.getOrDefault(facet, -1.f));
+            }
+        }
+
+        Set<String> xpaths = new HashSet<>(docTypeThresholds.keySet());
+        facetThresholds.forEach(thresholds -> xpaths.addAll(thresholds.keySet()));
+        Map<String, Thresholds> byXPath = new HashMap<>();
+        for (String xpath : xpaths) {
+            float value = -1.f;
+            float autofill = -1.f;
+            float autocorrect = -1.f;
+            Threshold typeThreshold = docTypeThresholds.get(xpath);
+            if (typeThreshold != null) {
+                value = typeThreshold.getValue();
+                autofill = typeThreshold.getAutofillValue();
+                autocorrect = typeThreshold.getAutocorrect();
+            }
+            for (Map<String, Threshold> thresholds : facetThresholds) {
+                Threshold facetThreshold = thresholds.get(xpath);
+                if (facetThreshold != null) {
+                    value = Math.max(value, facetThreshold.getValue());
+                    autofill = Math.max(autofill, facetThreshold.getAutofillValue());
+                    autocorrect = Math.max(autocorrect, facetThreshold.getAutocorrect());
+                }
+            }
+            byXPath.put(xpath, new Thresholds(select(value, typeDefault, globalThreshold),
+                    select(autofill, typeDefault, globalAutofillThreshold),
+                    select(autocorrect, typeDefault, globalAutocorrectThreshold)));
+        }
+
+        Thresholds defaults = new Thresholds(select(-1.f, typeDefault, globalThreshold),
+                select(-1.f, typeDefault, globalAutofillThreshold),
+                select(-1.f, typeDefault, globalAutocorrectThreshold));
+        return new DocumentThresholds(byXPath, defaults);
+    }
+
+    /**
+     * Falls back on the type default when the property has no value, then on the global value.
+     */
+    protected static float select(float value, float typeDefault, float global) {
+        float result = value < 0.f ? typeDefault : value;
+        return result > 0.f ? result : global;
+    }
+
+    /**
+     * The thresholds of all the properties for a document type and set of facets.
+     */
+    public static class DocumentThresholds {
+
+        protected final Map<String, Thresholds> byXPath;
+
+        protected final Thresholds defaults;
+
+        protected DocumentThresholds(Map<String, Thresholds> byXPath, Thresholds defaults) {
+            this.byXPath = Collections.unmodifiableMap(byXPath);
+            this.defaults = defaults;
+        }
+
+        /**
+         * Gets the thresholds of a property, the type defaults apply when it has no configuration.
+         */
+        public Thresholds get(String xpath) {
+            return byXPath.getOrDefault(xpath, defaults);
+        }
+    }
+}
@@ -58,4 +58,22 @@ public interface ThresholdService extends Reloadable {
      * global is used
      */
     float getAutoCorrectThreshold(DocumentModel doc, String xpath);
+
+    /**
+     * Provides the threshold, autofill and autocorrect values of a property in a single lookup
+     *
+     * @param doc   {@link DocumentModel}'s type or facet to be used for finding threshold values
+     * @param xpath of a property
+     * @return the values as returned by {@link #getThreshold}, {@link #getAutoFillThreshold} and
+     * {@link #getAutoCorrectThreshold}
+     */
+    Thresholds getThresholds(DocumentModel doc, String xpath);
+
+    /**
+     * Provides the thresholds of all the properties of a document, resolved once for its type and facets
+     *
+     * @param doc {@link DocumentModel}'s type or facet to be used for finding threshold values
+     * @return the thresholds by property, properties without configuration get the type or global values
+     */
+    ThresholdIndex.DocumentThresholds getThresholds(DocumentModel doc);
 }
@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2022 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Nuxeo
+ */
+package org.nuxeo.ai.configuration;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * The thresholds resolved for a property of a document.
+ */
+public final class Thresholds {
+
+    protected final float threshold;
+
+    protected final float autoFillThreshold;
+
+    protected final float autoCorrectThreshold;
+
+    public Thresholds(float threshold, float autoFillThreshold, float autoCorrectThreshold) {
+        this.threshold = threshold;
+        this.autoFillThreshold = autoFillThreshold;
+        this.autoCorrectThreshold = autoCorrectThreshold;
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    public float getAutoFillThreshold() {
+        return autoFillThreshold;
+    }
+
+    public float getAutoCorrectThreshold() {
+        return autoCorrectThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this).append("threshold", threshold)
+                                        .append("autoFillThreshold", autoFillThreshold)
+                                        .append("autoCorrectThreshold", autoCorrectThreshold)
+                                        .toString();
+    }
+}
@@ -19,6 +19,7 @@
 package org.nuxeo.ai.enrichment;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.nuxeo.ai.enrichment.EnrichmentUtils.optionAsInteger;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.fromRecord;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.toRecord;
 import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.STREAM_IN;
@@ -27,11 +28,22 @@ import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.buildName;
 import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.getStreamsList;
 import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.registerMetrics;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.metadata.AIMetadata;
@@ -47,6 +59,11 @@ import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.metrics.NuxeoMetricSet;
 import org.nuxeo.runtime.stream.StreamProcessorTopology;
 
+import io.dropwizard.metrics5.Metric;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.Timer;
+
 import net.jodah.failsafe.CircuitBreaker;
 import net.jodah.failsafe.CircuitBreakerOpenException;
 import net.jodah.failsafe.Failsafe;
@@ -63,12 +80,27 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
 
     public static final String USE_CACHE = "cache";
 
+    public static final String BATCH_SIZE = "batchSize";
+
+    public static final String BATCH_THRESHOLD_MS = "batchThresholdMs";
+
+    public static final int DEFAULT_BATCH_SIZE = 1;
+
+    public static final int DEFAULT_BATCH_THRESHOLD_MS = 500;
+
+    public static final String CONCURRENCY = "concurrency";
+
+    public static final int DEFAULT_CONCURRENCY = 1;
+
     @Override
     public Topology getTopology(Map<String, String> options) {
         String streamIn = options.get(STREAM_IN);
         String streamOut = options.get(STREAM_OUT);
         List<String> streams = getStreamsList(streamIn, streamOut);
         boolean shouldCache = Boolean.parseBoolean(options.getOrDefault(USE_CACHE, "true"));
+        int batchSize = optionAsInteger(options, BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        int batchThreshold = optionAsInteger(options, BATCH_THRESHOLD_MS, DEFAULT_BATCH_THRESHOLD_MS);
+        int concurrency = optionAsInteger(options, CONCURRENCY, DEFAULT_CONCURRENCY);
         String enricherName = options.get(ENRICHER_NAME);
         if (isBlank(enricherName)) {
             throw new IllegalArgumentException("Please specify valid config for " + ENRICHER_NAME);
@@ -78,21 +110,44 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
         return Topology.builder()
                        .addComputation(
                                () -> new EnrichmentComputation(streams.size() - 1, computationName, enricherName,
-                                       metrics, shouldCache), streams)
+                                       metrics, shouldCache, batchSize, batchThreshold, concurrency), streams)
                        .build();
     }
 
     /**
      * A Computation that uses an EnrichmentProvider to transform the Record.
+     * <p>
+     * If the provider supports batches and the batch size is greater than 1 then records are accumulated and sent to
+     * the provider in a single call, when the batch is full or when the batch threshold (in milliseconds) is reached.
+     * <p>
+     * If the concurrency is greater than 1 then up to that number of provider calls are kept in flight on a dedicated
+     * executor. Results are written in the order the records were read and the offset is only checkpointed once every
+     * record read so far has been processed.
      */
     public static class EnrichmentComputation extends AbstractComputation {
 
+        public static final String TIMER_BATCH = "batch";
+
         protected final EnrichmentMetrics metrics;
 
         protected final boolean useCache;
 
         protected final String enricherName;
 
+        protected final int batchSize;
+
+        protected final long batchThreshold;
+
+        protected final int concurrency;
+
+        protected final List<BatchEntry> batch = new ArrayList<>();
+
+        protected final Deque<PendingEnrichment> inFlight = new ArrayDeque<>();
+
+        protected ExecutorService executor;
+
+        protected boolean timerSet;
+
         protected EnrichmentProvider provider;
 
         protected EnrichmentSupport enrichmentSupport;
@@ -103,10 +158,19 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
 
         public EnrichmentComputation(int outputStreams, String computationName, String enricherName,
                 EnrichmentMetrics metrics, boolean useCache) {
+            this(outputStreams, computationName, enricherName, metrics, useCache, DEFAULT_BATCH_SIZE,
+                    DEFAULT_BATCH_THRESHOLD_MS, DEFAULT_CONCURRENCY);
+        }
+
+        public EnrichmentComputation(int outputStreams, String computationName, String enricherName,
+                EnrichmentMetrics metrics, boolean useCache, int batchSize, long batchThreshold, int concurrency) {
             super(computationName, 1, outputStreams);
             this.enricherName = enricherName;
             this.metrics = metrics;
             this.useCache = useCache;
+            this.batchSize = batchSize;
+            this.batchThreshold = batchThreshold;
+            this.concurrency = concurrency;
         }
 
         @Override
@@ -126,6 +190,15 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
             }
             this.retryPolicy = provider.getRetryPolicy();
             this.circuitBreaker = provider.getCircuitBreaker();
+            this.batch.clear();
+            this.inFlight.clear();
+            this.timerSet = false;
+            if (concurrency > 1 && executor == null) {
+                this.executor = Executors.newFixedThreadPool(concurrency,
+                        new BasicThreadFactory.Builder().namingPattern("ai-enrichment-" + enricherName + "-%d")
+                                                        .daemon(true)
+                                                        .build());
+            }
         }
 
         @Override
@@ -139,41 +212,212 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
 
             if (callable != null) {
                 metrics.called();
+                if (isBatching()) {
+                    // Cache hits are queued too, so the results are written in the order of the records
+                    batch.add(new BatchEntry(blobTextFromDoc, isCacheHit(callable) ? callable : null));
+                    if (batch.size() >= batchSize) {
+                        processBatch(context);
+                    }
+                } else {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Calling {} for doc {}", enricherName, blobTextFromDoc.getId());
+                    }
+                    if (executor != null) {
+                        submit(context, blobTextFromDoc, callable);
+                    } else {
+                        handleResult(context, blobTextFromDoc, callEnrichment(blobTextFromDoc.getId(), callable));
+                    }
+                }
+            } else {
+                metrics.unsupported();
+                log.error("Unsupported call to {} for doc {}", enricherName, blobTextFromDoc.getId());
+            }
+
+            completeInFlight(context, false);
+            if (isIdle()) {
+                context.askForCheckpoint();
+            } else if (!timerSet) {
+                // Records waiting in a batch or in flight must not be checkpointed until they are processed
+                context.setTimer(TIMER_BATCH, System.currentTimeMillis() + batchThreshold);
+                timerSet = true;
+            }
+        }
+
+        @Override
+        public void processTimer(ComputationContext context, String key, long timestamp) {
+            if (TIMER_BATCH.equals(key)) {
+                timerSet = false;
+                if (!batch.isEmpty()) {
+                    processBatch(context);
+                }
+                completeInFlight(context, false);
+                if (isIdle()) {
+                    context.askForCheckpoint();
+                } else {
+                    // Don't block on the provider calls still in flight, check them again later
+                    context.setTimer(TIMER_BATCH, System.currentTimeMillis() + batchThreshold);
+                    timerSet = true;
+                }
+            }
+        }
+
+        /**
+         * True if there are no records waiting in a batch or in flight.
+         */
+        protected boolean isIdle() {
+            return batch.isEmpty() && inFlight.isEmpty();
+        }
+
+        /**
+         * Calls the provider asynchronously. If the maximum number of calls are already in flight then wait for the
+         * oldest one to complete.
+         */
+        protected void submit(ComputationContext context, BlobTextFromDocument blobTextFromDoc,
+                Callable<Collection<AIMetadata>> callable) {
+            if (inFlight.size() >= concurrency) {
+                completeNext(context);
+            }
+            long submitted = System.nanoTime();
+            CompletableFuture<Collection<AIMetadata>> future = CompletableFuture.supplyAsync(() -> {
+                metrics.queueWait(System.nanoTime() - submitted);
+                return callEnrichment(blobTextFromDoc.getId(), callable);
+            }, executor);
+            inFlight.add(new PendingEnrichment(blobTextFromDoc, future));
+            metrics.inFlight(inFlight.size());
+        }
+
+        /**
+         * Handles the results of the calls in flight, in the order they were submitted. If wait is false then it stops
+         * at the first call that isn't finished.
+         */
+        protected void completeInFlight(ComputationContext context, boolean wait) {
+            while (!inFlight.isEmpty() && (wait || inFlight.peek().future.isDone())) {
+                completeNext(context);
+            }
+        }
+
+        /**
+         * Waits for the oldest call in flight and handles its result.
+         */
+        protected void completeNext(ComputationContext context) {
+            PendingEnrichment pending = inFlight.poll();
+            metrics.inFlight(inFlight.size());
+            Collection<AIMetadata> result;
+            try {
+                result = pending.future.join();
+            } catch (CompletionException e) {
+                // Stop processing, the records in flight will be processed again as they are not checkpointed
+                inFlight.forEach(p -> p.future.cancel(true));
+                inFlight.clear();
+                metrics.inFlight(0);
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new NuxeoException(e.getCause());
+            }
+            handleResult(context, pending.blobTextFromDoc, result);
+        }
+
+        /**
+         * Sends the records of the current batch that aren't cached to the provider in a single call. If the batch call
+         * fails then each record is enriched individually. The calls in flight are completed first so the results are
+         * written in order.
+         */
+        protected void processBatch(ComputationContext context) {
+            completeInFlight(context, true);
+            List<BatchEntry> entries = new ArrayList<>(batch);
+            batch.clear();
+            List<BlobTextFromDocument> blobTextFromDocs = entries.stream()
+                                                                 .filter(entry -> entry.cached == null)
+                                                                 .map(entry -> entry.blobTextFromDoc)
+                                                                 .collect(Collectors.toList());
+            List<Collection<EnrichmentMetadata>> results = blobTextFromDocs.isEmpty() ? Collections.emptyList() : null;
+            if (results == null) {
                 if (log.isDebugEnabled()) {
-                    log.debug("Calling {} for doc {}", enricherName, blobTextFromDoc.getId());
+                    log.debug("Calling {} for a batch of {} docs", enricherName, blobTextFromDocs.size());
                 }
-                Collection<AIMetadata> result = null;
+                metrics.batch();
                 try {
-                    result = callProvider(record, callable);
+                    results = Failsafe.with(retryPolicy).onFailedAttempt(failure -> {
+                        metrics.error();
+                        log.warn("Enrichment error ({}) for a batch of {} docs", enricherName,
+                                blobTextFromDocs.size(), failure);
+                    }).onRetry(c -> metrics.retry()).with(circuitBreaker).get(() -> provider.enrich(blobTextFromDocs));
                 } catch (CircuitBreakerOpenException e) {
                     metrics.circuitBreaker();
-                    // The circuit break is open, throw NuxeoException, so it doesn't continue processing.
                     throw new NuxeoException(
                             "Stream circuit breaker for " + enricherName + ". Stopping processing the stream.");
                 } catch (FatalEnrichmentError fee) {
                     metrics.fatal();
-                    // Fatal error so throw it to stop processing
                     throw fee;
                 } catch (RuntimeException e) {
-                    // The error is logged by onFailedAttempt so just move on to the next record.
+                    // The error is logged by onFailedAttempt so fallback to enriching one at a time.
                 }
+            }
 
-                if (result != null) {
-                    if (useCache && provider instanceof EnrichmentCachable) {
-                        EnrichmentCachable cachable = (EnrichmentCachable) provider;
-                        cachePut(cachable.getCacheKey(blobTextFromDoc), result, cachable.getTimeToLive());
+            boolean fallback = results == null || results.size() != blobTextFromDocs.size();
+            int next = 0;
+            for (BatchEntry entry : entries) {
+                BlobTextFromDocument blobTextFromDoc = entry.blobTextFromDoc;
+                if (entry.cached != null) {
+                    handleResult(context, blobTextFromDoc, callEnrichment(blobTextFromDoc.getId(), entry.cached));
+                } else if (fallback) {
+                    handleResult(context, blobTextFromDoc,
+                            callEnrichment(blobTextFromDoc.getId(), () -> getAiMetadata(blobTextFromDoc)));
+                } else {
+                    Collection<EnrichmentMetadata> result = results.get(next++);
+                    metrics.success();
+                    if (result != null) {
+                        handleResult(context, blobTextFromDoc, new ArrayList<>(result));
                     }
-                    List<Record> results = result.stream()
-                                                 .map(meta -> toRecord(meta.context.documentRef, meta))
-                                                 .collect(Collectors.toList());
-                    writeToStreams(context, results);
                 }
-            } else {
-                metrics.unsupported();
-                log.error("Unsupported call to {} for doc {}", enricherName, blobTextFromDoc.getId());
             }
+        }
+
+        /**
+         * Calls the provider, handling circuit breaker and fatal errors. Returns null if the call failed.
+         */
+        protected Collection<AIMetadata> callEnrichment(String docId, Callable<Collection<AIMetadata>> callable) {
+            try {
+                return callProvider(docId, callable);
+            } catch (CircuitBreakerOpenException e) {
+                metrics.circuitBreaker();
+                // The circuit break is open, throw NuxeoException, so it doesn't continue processing.
+                throw new NuxeoException(
+                        "Stream circuit breaker for " + enricherName + ". Stopping processing the stream.");
+            } catch (FatalEnrichmentError fee) {
+                metrics.fatal();
+                // Fatal error so throw it to stop processing
+                throw fee;
+            } catch (RuntimeException e) {
+                // The error is logged by onFailedAttempt so just move on to the next record.
+                return null;
+            }
+        }
+
+        /**
+         * Caches the result of a provider call then writes it to the output streams.
+         */
+        protected void handleResult(ComputationContext context, BlobTextFromDocument blobTextFromDoc,
+                Collection<AIMetadata> result) {
+            if (result != null) {
+                if (useCache && provider instanceof EnrichmentCachable) {
+                    EnrichmentCachable cachable = (EnrichmentCachable) provider;
+                    cachePut(cachable.getCacheKey(blobTextFromDoc), result, cachable.getTimeToLive());
+                }
+                List<Record> results = result.stream()
+                                             .map(meta -> toRecord(meta.context.documentRef, meta))
+                                             .collect(Collectors.toList());
+                writeToStreams(context, results);
+            }
+        }
+
+        protected boolean isBatching() {
+            return batchSize > 1 && provider.supportsBatch();
+        }
 
-            context.askForCheckpoint();
+        protected boolean isCacheHit(Callable<Collection<AIMetadata>> callable) {
+            return callable instanceof CachedMetadata;
         }
 
         /**
@@ -195,7 +439,7 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
         /**
          * Calls the provider using the retryPolicy
          */
-        protected Collection<AIMetadata> callProvider(Record record, Callable<Collection<AIMetadata>> callable) {
+        protected Collection<AIMetadata> callProvider(String docId, Callable<Collection<AIMetadata>> callable) {
             return Failsafe.with(retryPolicy).onSuccess(r -> {
                 metrics.success();
                 if (log.isDebugEnabled()) {
@@ -203,11 +447,11 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
                 }
             }).onFailedAttempt(failure -> {
                 metrics.error();
-                log.warn("Enrichment error ({}) for record: {} ", enricherName, record, failure);
+                log.warn("Enrichment error ({}) for doc: {} ", enricherName, docId, failure);
             }).onRetry(c -> {
                 metrics.retry();
                 if (log.isDebugEnabled()) {
-                    log.debug("Retrying record " + record);
+                    log.debug("Retrying doc " + docId);
                 }
             }).with(circuitBreaker).get(callable);
         }
@@ -223,7 +467,7 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
                 Collection<AIMetadata> metadata = (Collection<AIMetadata>) cacheGet(cacheKey);
                 if (!metadata.isEmpty()) {
                     metrics.cacheHit();
-                    return () -> EnrichmentUtils.copyEnrichmentMetadata(metadata, blobTextFromDoc);
+                    return (CachedMetadata) () -> EnrichmentUtils.copyEnrichmentMetadata(metadata, blobTextFromDoc);
                 }
             }
             if (!blobTextFromDoc.getBlobs().isEmpty() && enrichmentSupport != null) {
@@ -249,6 +493,47 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
         @Override
         public void destroy() {
             log.debug("Destroy computation: " + metadata.name());
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+
+        /**
+         * A provider call in flight for a document.
+         */
+        protected static class PendingEnrichment {
+
+            protected final BlobTextFromDocument blobTextFromDoc;
+
+            protected final CompletableFuture<Collection<AIMetadata>> future;
+
+            public PendingEnrichment(BlobTextFromDocument blobTextFromDoc,
+                    CompletableFuture<Collection<AIMetadata>> future) {
+                this.blobTextFromDoc = blobTextFromDoc;
+                this.future = future;
+            }
+        }
+
+        /**
+         * A record waiting in a batch, with its cached metadata if any.
+         */
+        protected static class BatchEntry {
+
+            protected final BlobTextFromDocument blobTextFromDoc;
+
+            protected final Callable<Collection<AIMetadata>> cached;
+
+            public BatchEntry(BlobTextFromDocument blobTextFromDoc, Callable<Collection<AIMetadata>> cached) {
+                this.blobTextFromDoc = blobTextFromDoc;
+                this.cached = cached;
+            }
+        }
+
+        /**
+         * A callable that returns metadata from the cache, it never calls the provider.
+         */
+        protected interface CachedMetadata extends Callable<Collection<AIMetadata>> {
         }
 
         /**
@@ -287,6 +572,14 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
 
         protected long cacheHit = 0;
 
+        protected long batches = 0;
+
+        protected long inFlight = 0;
+
+        protected final MetricName queueWaitName;
+
+        protected final Timer queueWait;
+
         public EnrichmentMetrics(String name) {
             super("nuxeo", "ai", "enrichment", name);
             this.putGauge(() -> called, "called");
@@ -298,6 +591,20 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
             this.putGauge(() -> produced, "produced");
             this.putGauge(() -> unsupported, "unsupported");
             this.putGauge(() -> cacheHit, "cacheHit");
+            this.putGauge(() -> batches, "batches");
+            this.putGauge(() -> inFlight, "inFlight");
+            this.queueWaitName = MetricRegistry.name("nuxeo", "ai", "enrichment", name, "queueWait");
+            this.queueWait = new Timer();
+        }
+
+        /**
+         * Adds the queue wait timer to the gauges, so it belongs to the metric set registered for the computation.
+         */
+        @Override
+        public Map<MetricName, Metric> getMetrics() {
+            Map<MetricName, Metric> metrics = new HashMap<>(super.getMetrics());
+            metrics.put(queueWaitName, queueWait);
+            return metrics;
         }
 
         /**
@@ -310,35 +617,35 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
         /**
          * Increment success
          */
-        public void success() {
+        public synchronized void success() {
             success++;
         }
 
         /**
          * Increment retries
          */
-        public void retry() {
+        public synchronized void retry() {
             retries++;
         }
 
         /**
          * Increment errors
          */
-        public void error() {
+        public synchronized void error() {
             errors++;
         }
 
         /**
          * Increment fatal errors
          */
-        public void fatal() {
+        public synchronized void fatal() {
             fatal++;
         }
 
         /**
          * Increment circuit breakers
          */
-        public void circuitBreaker() {
+        public synchronized void circuitBreaker() {
             circuitBreaker++;
         }
 
@@ -362,5 +669,26 @@ public class EnrichingStreamProcessor implements StreamProcessorTopology {
         public void cacheHit() {
             cacheHit++;
         }
+
+        /**
+         * Increment batches
+         */
+        public void batch() {
+            batches++;
+        }
+
+        /**
+         * Set the number of provider calls in flight
+         */
+        public void inFlight(long count) {
+            inFlight = count;
+        }
+
+        /**
+         * Record the time a provider call waited before being executed
+         */
+        public void queueWait(long nanos) {
+            queueWait.update(nanos, TimeUnit.NANOSECONDS);
+        }
     }
 }
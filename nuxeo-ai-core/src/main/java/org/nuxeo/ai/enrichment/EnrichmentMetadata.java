@@ -140,6 +140,19 @@ public class EnrichmentMetadata extends AIMetadata implements Cloneable {
      * Create a enrichment Map using the enrichment metadata
      */
     public Map<String, Object> toMap() {
+        Map<String, Object> anEntry = toItem();
+        Blob rawBlob = getRawBlob();
+        if (rawBlob != null) {
+            anEntry.put(ENRICHMENT_RAW_KEY_PROPERTY, rawBlob);
+        }
+        anEntry.put(NORMALIZED_PROPERTY, toNormalizedBlob(toNormalizedJson()));
+        return anEntry;
+    }
+
+    /**
+     * Create a enrichment Map without the raw and normalized blobs, so it can be compared before writing them
+     */
+    public Map<String, Object> toItem() {
         List<Map<String, Object>> suggestions = new ArrayList<>(getLabels().size());
         getLabels().forEach(suggestion -> {
             Map<String, Object> anEntry = new HashMap<>();
@@ -157,34 +170,9 @@ public class EnrichmentMetadata extends AIMetadata implements Cloneable {
         });
 
         Map<String, Object> anEntry = new HashMap<>();
-        AIComponent aiComponent = Framework.getService(AIComponent.class);
-
         if (!suggestions.isEmpty()) {
             anEntry.put(SUGGESTION_SUGGESTIONS, suggestions);
         }
-
-        try {
-            if (StringUtils.isNotEmpty(getRawKey())) {
-                TransientStore transientStore = aiComponent.getTransientStoreForEnrichmentProvider(getModelName());
-
-                List<Blob> rawBlobs = transientStore.getBlobs(getRawKey());
-                if (rawBlobs != null && rawBlobs.size() == 1) {
-                    anEntry.put(ENRICHMENT_RAW_KEY_PROPERTY, rawBlobs.get(0));
-                } else {
-                    log.warn("Unexpected transient store raw blob information for {}. "
-                            + "A single raw blob is expected.", modelName);
-                }
-            }
-
-            EnrichmentMetadata clone = (EnrichmentMetadata) clone();
-            clone.getLabels().forEach(LabelSuggestion::keepUniqueOnly);
-            Blob metadataBlob = Blobs.createJSONBlob(MAPPER.writeValueAsString(clone));
-            metadataBlob.setFilename(NORMALIZED_PROPERTY + ".json");
-            anEntry.put(NORMALIZED_PROPERTY, metadataBlob);
-        } catch (IOException e) {
-            throw new NuxeoException("Unable to process metadata blob", e);
-        }
-
         anEntry.put(ENRICHMENT_MODEL, modelName);
         anEntry.put(ENRICHMENT_INPUT_DOCPROP_PROPERTY, context.inputProperties);
         if (log.isDebugEnabled()) {
@@ -193,6 +181,48 @@ public class EnrichmentMetadata extends AIMetadata implements Cloneable {
         return anEntry;
     }
 
+    /**
+     * Get the raw blob of the enrichment service from its transient store
+     *
+     * @return the raw blob or null if there is none
+     */
+    public Blob getRawBlob() {
+        if (StringUtils.isEmpty(getRawKey())) {
+            return null;
+        }
+        AIComponent aiComponent = Framework.getService(AIComponent.class);
+        TransientStore transientStore = aiComponent.getTransientStoreForEnrichmentProvider(getModelName());
+        List<Blob> rawBlobs = transientStore.getBlobs(getRawKey());
+        if (rawBlobs != null && rawBlobs.size() == 1) {
+            return rawBlobs.get(0);
+        }
+        log.warn("Unexpected transient store raw blob information for {}. A single raw blob is expected.",
+                modelName);
+        return null;
+    }
+
+    /**
+     * Serializes the normalized view of this metadata, keeping unique labels only
+     */
+    public String toNormalizedJson() {
+        EnrichmentMetadata clone = (EnrichmentMetadata) clone();
+        clone.getLabels().forEach(LabelSuggestion::keepUniqueOnly);
+        try {
+            return MAPPER.writeValueAsString(clone);
+        } catch (IOException e) {
+            throw new NuxeoException("Unable to process metadata blob", e);
+        }
+    }
+
+    /**
+     * Create the normalized blob stored with an enrichment item
+     */
+    public static Blob toNormalizedBlob(String normalizedJson) {
+        Blob metadataBlob = Blobs.createJSONBlob(normalizedJson);
+        metadataBlob.setFilename(NORMALIZED_PROPERTY + ".json");
+        return metadataBlob;
+    }
+
     public static class Builder extends AbstractMetaDataBuilder {
 
         private List<LabelSuggestion> labelSuggestions;
@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright 2022 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Nuxeo
+ */
+package org.nuxeo.ai.enrichment;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+
+/**
+ * A size-bounded, in-process cache in front of the {@link EnrichmentUtils#ENRICHMENT_CACHE_KV} KeyValueStore.
+ * <p>
+ * Entries are kept already decoded, so a hit costs neither a KeyValueStore round trip nor a JSON parse. The byte
+ * budget is enforced using the size of the serialized entry. An entry expires with the time to live it was put with,
+ * bounded by the near cache time to live, so it never outlives the KeyValueStore entry.
+ */
+public class EnrichmentNearCache {
+
+    public static final String NEAR_CACHE_MAX_BYTES = "nuxeo.ai.enrichment.nearCache.maxBytes";
+
+    public static final String NEAR_CACHE_TTL = "nuxeo.ai.enrichment.nearCache.ttl.seconds";
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    public static final long DEFAULT_TTL = 300;
+
+    private static final Logger log = LogManager.getLogger(EnrichmentNearCache.class);
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Cache<String, Entry> cache;
+
+    protected final AtomicLong bytesResident = new AtomicLong();
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    protected final long ttl;
+
+    public EnrichmentNearCache(long maxBytes, long ttl) {
+        this.ttl = ttl;
+        cache = CacheBuilder.newBuilder()
+                            .maximumWeight(maxBytes)
+                            .weigher((String key, Entry entry) -> entry.bytes)
+                            .expireAfterWrite(Duration.ofSeconds(ttl))
+                            .removalListener(this::onRemove)
+                            .recordStats()
+                            .build();
+    }
+
+    /**
+     * Gets the cached metadata or null if the key isn't in the cache.
+     */
+    public Collection<EnrichmentMetadata> get(String cacheKey) {
+        Entry entry = cache.getIfPresent(cacheKey);
+        if (entry == null) {
+            return null;
+        } else if (entry.isExpired()) {
+            cache.invalidate(cacheKey);
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    /**
+     * Puts the metadata in the cache for the near cache time to live, bytes is the size of its serialized form.
+     */
+    public void put(String cacheKey, Collection<EnrichmentMetadata> metadata, int bytes) {
+        put(cacheKey, metadata, bytes, ttl);
+    }
+
+    /**
+     * Puts the metadata in the cache, bytes is the size of its serialized form and ttl its time to live in seconds.
+     */
+    public void put(String cacheKey, Collection<EnrichmentMetadata> metadata, int bytes, long ttl) {
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.min(ttl, this.ttl));
+        Entry entry = new Entry(metadata, bytes, expiresAt);
+        cache.put(cacheKey, entry);
+        bytesResident.addAndGet(bytes);
+    }
+
+    public void invalidate(String cacheKey) {
+        cache.invalidate(cacheKey);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    protected void onRemove(RemovalNotification<String, Entry> notification) {
+        Entry entry = notification.getValue();
+        if (entry != null) {
+            bytesResident.addAndGet(-entry.bytes);
+        }
+        if (notification.wasEvicted()) {
+            evictions.incrementAndGet();
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Removing {} from the enrichment near cache; Cause {}", notification.getKey(),
+                    notification.getCause());
+        }
+    }
+
+    /**
+     * Registers the hit, miss, eviction and bytes resident metrics within the shared registry.
+     */
+    public void register() {
+        unregister();
+        String name = getMetricsName();
+        registry.register(MetricRegistry.name(name, "hit"), (Gauge<Long>) () -> cache.stats().hitCount());
+        registry.register(MetricRegistry.name(name, "miss"), (Gauge<Long>) () -> cache.stats().missCount());
+        registry.register(MetricRegistry.name(name, "eviction"), (Gauge<Long>) evictions::get);
+        registry.register(MetricRegistry.name(name, "bytesResident"), (Gauge<Long>) bytesResident::get);
+    }
+
+    /**
+     * Removes the metrics from the shared registry.
+     */
+    public void unregister() {
+        String name = getMetricsName();
+        registry.removeMatching((metricName, metric) -> metricName.toString().startsWith(name));
+    }
+
+    protected String getMetricsName() {
+        return MetricRegistry.name("nuxeo.ai", "enrichment", "nearCache").toString();
+    }
+
+    /**
+     * A decoded cache entry with the size of its serialized form and its expiration time.
+     */
+    protected static class Entry {
+
+        protected final List<EnrichmentMetadata> metadata;
+
+        protected final int bytes;
+
+        protected final long expiresAt;
+
+        public Entry(Collection<EnrichmentMetadata> metadata, int bytes, long expiresAt) {
+            this.metadata = Collections.unmodifiableList(new ArrayList<>(metadata));
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isExpired() {
+            return System.nanoTime() - expiresAt > 0;
+        }
+    }
+}
@@ -19,7 +19,9 @@
 package org.nuxeo.ai.enrichment;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.nuxeo.ai.pipes.types.BlobTextFromDocument;
 import org.nuxeo.ecm.core.api.NuxeoException;
 
@@ -51,6 +53,24 @@ public interface EnrichmentProvider {
      */
     Collection<EnrichmentMetadata> enrich(BlobTextFromDocument blobTextFromDoc);
 
+    /**
+     * Indicates the provider is able to enrich several documents in a single call.
+     *
+     * @see #enrich(List)
+     */
+    default boolean supportsBatch() {
+        return false;
+    }
+
+    /**
+     * Enriches a batch of blobs or texts. The result list is in the same order as the input list, with one entry per
+     * BlobTextFromDocument. Providers that make remote calls should override this method, and {@link #supportsBatch()},
+     * to use a single round trip for the whole batch.
+     */
+    default List<Collection<EnrichmentMetadata>> enrich(List<BlobTextFromDocument> blobTextFromDocs) {
+        return blobTextFromDocs.stream().map(this::enrich).collect(Collectors.toList());
+    }
+
     /**
      * The retry policy for the provider
      */
@@ -122,11 +122,14 @@ public class EnrichmentUtils {
     }
 
     /**
-     * Creates a key based on a concatenation of the property value hash codes used by the BlobTextFromDocument.
+     * Creates a key based on the 128-bit content hash of the properties, and blob digests, used by the
+     * BlobTextFromDocument. Returns null if there are no properties.
      */
     public static String makeKeyUsingProperties(BlobTextFromDocument blobTextFromDoc, String prefix) {
-        return makeKeyUsingStream(
-                blobTextFromDoc.getProperties().values().stream().map(s -> String.valueOf(s.hashCode())), prefix);
+        if (blobTextFromDoc.getProperties().isEmpty()) {
+            return null;
+        }
+        return prefix + blobTextFromDoc.getContentHash();
     }
 
     /**
@@ -257,20 +260,35 @@ public class EnrichmentUtils {
     }
 
     /**
-     * Get an entry from the enrichment cache
+     * Get an entry from the enrichment cache, the in-process near cache is used before the KeyValueStore.
      *
      * @return
      */
     public static Collection<? extends AIMetadata> cacheGet(String cacheKey) {
         if (isNotBlank(cacheKey)) {
+            EnrichmentNearCache nearCache = getNearCache();
+            if (nearCache != null) {
+                Collection<EnrichmentMetadata> cached = nearCache.get(cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
             KeyValueStore kvStore = Framework.getService(KeyValueService.class).getKeyValueStore(ENRICHMENT_CACHE_KV);
             byte[] result = kvStore.get(cacheKey);
             if (result != null) {
                 try {
-                    return JacksonUtil.MAPPER.readValue(result, ENRICHMENT_LIST_TYPE);
+                    Collection<EnrichmentMetadata> metadata = JacksonUtil.MAPPER.readValue(result,
+                            ENRICHMENT_LIST_TYPE);
+                    if (nearCache != null) {
+                        nearCache.put(cacheKey, metadata, result.length);
+                    }
+                    return metadata;
                 } catch (IOException e) {
                     log.warn(String.format("Failed to read metadata from cache for key %s", cacheKey), e);
                     kvStore.put(cacheKey, (byte[]) null);
+                    if (nearCache != null) {
+                        nearCache.invalidate(cacheKey);
+                    }
                 }
             }
         }
@@ -289,6 +307,12 @@ public class EnrichmentUtils {
                         byte[] result = JacksonUtil.MAPPER.writeValueAsBytes(metadata);
                         if (result != null) {
                             kvStore.put(cacheKey, result, ttl);
+                            EnrichmentNearCache nearCache = getNearCache();
+                            if (nearCache != null) {
+                                nearCache.put(cacheKey, metadata.stream()
+                                                                .map(EnrichmentMetadata.class::cast)
+                                                                .collect(Collectors.toList()), result.length, ttl);
+                            }
                         }
                     } else {
                         log.warn("Caching is only currently supported for EnrichmentMetadata.");
@@ -300,6 +324,11 @@ public class EnrichmentUtils {
         }
     }
 
+    protected static EnrichmentNearCache getNearCache() {
+        AIComponent aiComponent = Framework.getService(AIComponent.class);
+        return aiComponent == null ? null : aiComponent.getEnrichmentNearCache();
+    }
+
     /**
      * Copy all the supplied metadata but using the BlobTextFromDocument as the context.
      */
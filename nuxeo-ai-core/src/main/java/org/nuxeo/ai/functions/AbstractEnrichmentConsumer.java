@@ -20,19 +20,56 @@ package org.nuxeo.ai.functions;
 
 import static java.util.Optional.empty;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.fromRecord;
+import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.STREAM_IN;
+import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.STREAM_OUT;
+import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.buildName;
+import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.getStreamsList;
+import static org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.registerMetrics;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.enrichment.EnrichmentMetadata;
+import org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.FunctionMetrics;
 import org.nuxeo.ai.pipes.streams.FunctionStreamProcessorTopology;
+import org.nuxeo.ai.pipes.streams.Initializable;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.lib.stream.computation.AbstractBatchComputation;
+import org.nuxeo.lib.stream.computation.ComputationContext;
 import org.nuxeo.lib.stream.computation.Record;
+import org.nuxeo.lib.stream.computation.Topology;
 
 /**
  * Consumes enrichment metadata and doesn't return any result.
+ * <p>
+ * Records are consumed in batches, as sized by the <code>batchCapacity</code> and <code>batchThreshold</code> of the
+ * stream processor policy.
  */
 public abstract class AbstractEnrichmentConsumer
         implements FunctionStreamProcessorTopology, Consumer<EnrichmentMetadata> {
 
+    private static final Logger log = LogManager.getLogger(AbstractEnrichmentConsumer.class);
+
+    @Override
+    public Topology getTopology(Map<String, String> options) {
+        if (this instanceof Initializable) {
+            ((Initializable) this).init(options);
+        }
+        String streamIn = options.get(STREAM_IN);
+        String streamOut = options.get(STREAM_OUT);
+        List<String> streams = getStreamsList(streamIn, streamOut);
+        String computationName = buildName(getClass().getSimpleName(), streamIn, streamOut);
+        FunctionMetrics metrics = registerMetrics(new FunctionMetrics(computationName), computationName);
+        return Topology.builder()
+                       .addComputation(() -> new EnrichmentConsumerComputation(streams.size() - 1, computationName,
+                               metrics, this), streams)
+                       .build();
+    }
+
     @Override
     public Optional<Record> apply(Record record) {
         EnrichmentMetadata metadata = fromRecord(record, EnrichmentMetadata.class);
@@ -41,4 +78,72 @@ public abstract class AbstractEnrichmentConsumer
         }
         return empty();
     }
+
+    /**
+     * Consumes a batch of enrichment metadata, by default one at a time.
+     */
+    public void accept(List<EnrichmentMetadata> batch) {
+        batch.forEach(this);
+    }
+
+    /**
+     * A Computation passing the enrichment metadata of a batch of records to the consumer.
+     */
+    public static class EnrichmentConsumerComputation extends AbstractBatchComputation {
+
+        protected final FunctionMetrics metrics;
+
+        protected final AbstractEnrichmentConsumer consumer;
+
+        public EnrichmentConsumerComputation(int outputStreams, String name, FunctionMetrics metrics,
+                AbstractEnrichmentConsumer consumer) {
+            super(name, 1, outputStreams);
+            this.metrics = metrics;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void batchProcess(ComputationContext context, String inputStreamName, List<Record> records) {
+            List<EnrichmentMetadata> batch = new ArrayList<>(records.size());
+            for (Record record : records) {
+                metrics.called();
+                EnrichmentMetadata metadata = fromRecord(record, EnrichmentMetadata.class);
+                if (metadata != null) {
+                    batch.add(metadata);
+                }
+            }
+            try {
+                if (!batch.isEmpty()) {
+                    consumer.accept(batch);
+                }
+                context.askForCheckpoint();
+            } catch (NuxeoException e) {
+                log.debug("Problem with a batch of {} records. Error is {}.", records.size(), e.getMessage());
+                metrics.error();
+                throw e; // Throw the error so it can be handled or retried higher up the stack.
+            }
+        }
+
+        /**
+         * Consumes the records of a failed batch one at a time, so only the records that fail on their own are lost.
+         */
+        @Override
+        public void batchFailure(ComputationContext context, String inputStreamName, List<Record> records) {
+            log.warn("Batch failure \"{}\" batch of {} records, consuming them one by one.", metadata.name(),
+                    records.size());
+            for (Record record : records) {
+                EnrichmentMetadata enrichment = fromRecord(record, EnrichmentMetadata.class);
+                if (enrichment == null) {
+                    continue;
+                }
+                try {
+                    consumer.accept(enrichment);
+                } catch (NuxeoException e) {
+                    metrics.error();
+                    log.warn("Skipping record {} of \"{}\". Error is {}.", record.getKey(), metadata.name(),
+                            e.getMessage());
+                }
+            }
+        }
+    }
 }
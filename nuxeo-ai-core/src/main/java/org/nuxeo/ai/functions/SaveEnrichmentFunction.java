@@ -18,11 +18,17 @@
  */
 package org.nuxeo.ai.functions;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.enrichment.EnrichmentMetadata;
 import org.nuxeo.ai.services.DocMetadataService;
 import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.validation.DocumentValidationException;
 import org.nuxeo.runtime.api.Framework;
@@ -38,24 +44,54 @@ public class SaveEnrichmentFunction extends AbstractEnrichmentConsumer {
     @Override
     public void accept(EnrichmentMetadata metadata) {
         TransactionHelper.runInTransaction(() -> CoreInstance.doPrivileged(metadata.context.repositoryName, session -> {
-            DocMetadataService docMetadataService = Framework.getService(DocMetadataService.class);
-            DocumentModel doc = docMetadataService.saveEnrichment(session, metadata);
-            if (doc != null) {
-                try {
-                    if (!doc.isImmutable()) {
-                        session.saveDocument(doc);
-                    } else {
-                        log.error("Attempt to write into an Immutable Document Model id: {}, AI Model name {}",
-                                doc.getId(), metadata.getModelName());
-                    }
-                } catch (DocumentValidationException e) {
-                    log.warn("Failed to save document enrichment data for {}.", metadata.context.documentRef, e);
-                }
-            } else {
-                log.debug("Failed to save enrichment for document {}.", metadata.context.documentRef);
-            }
-
+            save(session, Collections.singletonList(metadata));
             return null;
         }));
     }
+
+    /**
+     * Saves a batch of enrichment metadata, each document is saved once with all its metadata within a single
+     * transaction per repository.
+     */
+    @Override
+    public void accept(List<EnrichmentMetadata> batch) {
+        Map<String, Map<String, List<EnrichmentMetadata>>> byRepository = new LinkedHashMap<>();
+        for (EnrichmentMetadata metadata : batch) {
+            byRepository.computeIfAbsent(metadata.context.repositoryName, k -> new LinkedHashMap<>())
+                        .computeIfAbsent(metadata.context.documentRef, k -> new ArrayList<>())
+                        .add(metadata);
+        }
+        byRepository.forEach((repositoryName, byDocument) -> TransactionHelper.runInTransaction(
+                () -> CoreInstance.doPrivileged(repositoryName, session -> {
+                    byDocument.values().forEach(metadata -> save(session, metadata));
+                    return null;
+                })));
+    }
+
+    /**
+     * Saves the enrichment metadata of a single document.
+     */
+    protected void save(CoreSession session, List<EnrichmentMetadata> metadata) {
+        DocMetadataService docMetadataService = Framework.getService(DocMetadataService.class);
+        EnrichmentMetadata first = metadata.get(0);
+        DocumentModel doc = docMetadataService.saveEnrichment(session, metadata);
+        if (doc != null) {
+            if (!doc.isDirty()) {
+                log.debug("No enrichment change for document {}.", first.context.documentRef);
+                return;
+            }
+            try {
+                if (!doc.isImmutable()) {
+                    session.saveDocument(doc);
+                } else {
+                    log.error("Attempt to write into an Immutable Document Model id: {}, AI Model name {}",
+                            doc.getId(), first.getModelName());
+                }
+            } catch (DocumentValidationException e) {
+                log.warn("Failed to save document enrichment data for {}.", first.context.documentRef, e);
+            }
+        } else {
+            log.debug("Failed to save enrichment for document {}.", first.context.documentRef);
+        }
+    }
 }
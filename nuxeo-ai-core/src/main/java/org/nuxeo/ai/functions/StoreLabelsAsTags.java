@@ -18,7 +18,15 @@
  */
 package org.nuxeo.ai.functions;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.commons.lang3.StringUtils;
 import org.nuxeo.ai.enrichment.EnrichmentMetadata;
 import org.nuxeo.ai.enrichment.EnrichmentUtils;
@@ -37,28 +45,57 @@ public class StoreLabelsAsTags extends AbstractEnrichmentConsumer {
 
     @Override
     public void accept(EnrichmentMetadata metadata) {
-        TransactionHelper.runInTransaction(() -> CoreInstance.doPrivileged(metadata.context.repositoryName, session -> {
-            TagService tagService = Framework.getService(TagService.class);
-            metadata.getLabels()
-                    .stream()
-                    .flatMap(label -> label.getValues().stream())
-                    .map(this::toTag)
-                    .filter(StringUtils::isNotBlank)
-                    .forEach(t -> tagService.tag(session, metadata.context.documentRef, t));
-            metadata.getTags()
-                    .stream()
-                    .flatMap(tag -> EnrichmentUtils.getTagLabels(tag.getValues()).stream())
-                    .map(this::toTag)
-                    .filter(StringUtils::isNotBlank)
-                    .forEach(t -> tagService.tag(session, metadata.context.documentRef, t));
-        }));
+        accept(Collections.singletonList(metadata));
+    }
+
+    /**
+     * Tags the documents of a batch within a single transaction per repository, only the labels a document isn't
+     * tagged with yet are written.
+     */
+    @Override
+    public void accept(List<EnrichmentMetadata> batch) {
+        Map<String, Map<String, Set<String>>> byRepository = new LinkedHashMap<>();
+        for (EnrichmentMetadata metadata : batch) {
+            byRepository.computeIfAbsent(metadata.context.repositoryName, k -> new LinkedHashMap<>())
+                        .computeIfAbsent(metadata.context.documentRef, k -> new LinkedHashSet<>())
+                        .addAll(getTags(metadata));
+        }
+        TagService tagService = Framework.getService(TagService.class);
+        byRepository.forEach((repositoryName, byDocument) -> TransactionHelper.runInTransaction(
+                () -> CoreInstance.doPrivileged(repositoryName, session -> {
+                    byDocument.forEach((docId, tags) -> {
+                        tags.removeAll(tagService.getTags(session, docId));
+                        tags.forEach(tag -> tagService.tag(session, docId, tag));
+                    });
+                })));
+    }
+
+    /**
+     * Gets the distinct tags of the labels and tag suggestions.
+     */
+    protected Set<String> getTags(EnrichmentMetadata metadata) {
+        Stream<String> labels = metadata.getLabels()
+                                        .stream()
+                                        .flatMap(label -> label.getValues().stream())
+                                        .map(this::toTag);
+        Stream<String> tags = metadata.getTags()
+                                      .stream()
+                                      .flatMap(tag -> EnrichmentUtils.getTagLabels(tag.getValues()).stream())
+                                      .map(this::toTag);
+        return Stream.concat(labels, tags)
+                     .filter(StringUtils::isNotBlank)
+                     .collect(Collectors.toCollection(LinkedHashSet::new));
     }
 
     protected String toTag(AIMetadata.Label label) {
-        return ALLOWED_PATTERN.matcher(label.getName()).replaceAll("");
+        return toTag(label.getName());
     }
 
+    /**
+     * Cleans the tag the way the TagService stores it, lower case and without the characters it doesn't allow, so it
+     * can be compared with the existing tags.
+     */
     protected String toTag(String tag) {
-        return ALLOWED_PATTERN.matcher(tag).replaceAll("");
+        return ALLOWED_PATTERN.matcher(tag).replaceAll("").toLowerCase();
     }
 }
@@ -31,14 +31,12 @@ import static org.nuxeo.ai.AIConstants.SUGGESTION_SUGGESTIONS;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.AIConstants.AUTO;
@@ -67,13 +65,20 @@ public class SuggestionMetadataWrapper {
 
     protected Map<String, List<LabelSuggestion>> suggestionsByModelId = new HashMap<>();
 
+    // Lazily built indexes, see getSuggestionsByProperty, isAutoFilled and isAutoCorrected
+    protected Map<String, List<PropertyHolder>> suggestionsByProperty;
+
+    protected Set<String> autoFilledXPaths;
+
+    protected Set<String> autoCorrectedXPaths;
+
     public SuggestionMetadataWrapper(DocumentModel doc) {
         this.doc = doc;
         init();
     }
 
     /**
-     * Process the document
+     * Process the document, the suggestions are parsed once into {@link LabelSuggestion}s grouped by model.
      */
     @SuppressWarnings("unchecked")
     protected void init() {
@@ -97,38 +102,33 @@ public class SuggestionMetadataWrapper {
 
         List<Map<String, Object>> suggestList = (List<Map<String, Object>>) doc.getProperty(ENRICHMENT_SCHEMA_NAME,
                 ENRICHMENT_ITEMS);
-        if (suggestList == null) {
-            return;
-        }
-
-        suggestList.forEach(suggestObj -> {
-            String modelId = (String) suggestObj.get(ENRICHMENT_MODEL);
-            List<Map<String, Object>> suggestions = (List<Map<String, Object>>) suggestObj.get(SUGGESTION_SUGGESTIONS);
-
-            for (Map<String, Object> suggestion : suggestions) {
-                String property = (String) suggestion.get(SUGGESTION_PROPERTY);
-                List<Map<String, Object>> values = (List<Map<String, Object>>) suggestion.get(SUGGESTION_LABELS);
-                List<AIMetadata.Label> labels = values.stream()
-                                                      .map(v -> new AIMetadata.Label((String) v.get(SUGGESTION_LABEL),
-                                                              ((Double) v.get(SUGGESTION_CONFIDENCE)).floatValue(), 0L))
-                                                      .collect(Collectors.toList());
-                LabelSuggestion label = new LabelSuggestion(property, labels);
-                models.add(modelId);
-                List<LabelSuggestion> byModel = suggestionsByModelId.getOrDefault(modelId, new ArrayList<>());
-                byModel.add(label);
-
-                suggestionsByModelId.put(modelId, byModel);
+        if (suggestList != null) {
+            for (Map<String, Object> suggestObj : suggestList) {
+                String modelId = (String) suggestObj.get(ENRICHMENT_MODEL);
+                List<Map<String, Object>> suggestions = (List<Map<String, Object>>) suggestObj.get(
+                        SUGGESTION_SUGGESTIONS);
+                List<LabelSuggestion> byModel = null;
+                for (Map<String, Object> suggestion : suggestions) {
+                    String property = (String) suggestion.get(SUGGESTION_PROPERTY);
+                    List<Map<String, Object>> values = (List<Map<String, Object>>) suggestion.get(SUGGESTION_LABELS);
+                    List<AIMetadata.Label> labels = new ArrayList<>(values.size());
+                    for (Map<String, Object> v : values) {
+                        labels.add(new AIMetadata.Label((String) v.get(SUGGESTION_LABEL),
+                                ((Double) v.get(SUGGESTION_CONFIDENCE)).floatValue(), 0L));
+                    }
+                    if (byModel == null) {
+                        byModel = suggestionsByModelId.computeIfAbsent(modelId,
+                                k -> new ArrayList<>(suggestions.size()));
+                        models.add(modelId);
+                    }
+                    byModel.add(new LabelSuggestion(property, labels));
+                    autoProperties.add(property);
+                }
             }
+        }
 
-        });
-
-        autoProperties.addAll(suggestionsByModelId.values()
-                                                  .stream()
-                                                  .flatMap(Collection::stream)
-                                                  .map(val -> val.property)
-                                                  .collect(Collectors.toSet()));
-        autoProperties.addAll(autoFilled.stream().map(val -> val.get("xpath")).collect(Collectors.toSet()));
-        autoProperties.addAll(autoCorrected.stream().map(val -> val.get("xpath")).collect(Collectors.toSet()));
+        autoFilled.forEach(val -> autoProperties.add(val.get("xpath")));
+        autoCorrected.forEach(val -> autoProperties.add(val.get("xpath")));
     }
 
     public DocumentModel getDoc() {
@@ -144,17 +144,17 @@ public class SuggestionMetadataWrapper {
     }
 
     public List<PropertyHolder> getSuggestionsByProperty(String propertyName) {
-        //        return suggestionsByProperty.getOrDefault(propertyName, Collections.emptyList());
-        List<PropertyHolder> list = new ArrayList<>();
-        for (String key : suggestionsByModelId.keySet()) {
-            for (LabelSuggestion labelSuggestion : suggestionsByModelId.get(key)) {
-                if (propertyName.equals(labelSuggestion.property)) {
-                    list.add(PropertyHolder.of(key, labelSuggestion.values));
+        if (suggestionsByProperty == null) {
+            Map<String, List<PropertyHolder>> index = new HashMap<>();
+            suggestionsByModelId.forEach((model, suggestions) -> {
+                for (LabelSuggestion suggestion : suggestions) {
+                    index.computeIfAbsent(suggestion.property, k -> new ArrayList<>(1))
+                         .add(PropertyHolder.of(model, suggestion.values));
                 }
-            }
+            });
+            suggestionsByProperty = index;
         }
-
-        return list;
+        return Collections.unmodifiableList(suggestionsByProperty.getOrDefault(propertyName, Collections.emptyList()));
     }
 
     /**
@@ -178,6 +178,9 @@ public class SuggestionMetadataWrapper {
         Map<String, String> props = new HashMap<>();
         props.put("xpath", xpath);
         props.put("model", model);
+        if (autoFilledXPaths != null) {
+            autoFilledXPaths.add(xpath);
+        }
         return autoFilled.add(props);
     }
 
@@ -186,11 +189,23 @@ public class SuggestionMetadataWrapper {
     }
 
     public boolean isAutoFilled(String propertyName) {
-        return autoFilled.stream().map(filled -> filled.get("xpath")).anyMatch(xpath -> xpath.equals(propertyName));
+        if (autoFilledXPaths == null) {
+            autoFilledXPaths = indexXPaths(autoFilled);
+        }
+        return autoFilledXPaths.contains(propertyName);
     }
 
     public boolean isAutoCorrected(String propertyName) {
-        return autoCorrected.stream().map(filled -> filled.get("xpath")).anyMatch(xpath -> xpath.equals(propertyName));
+        if (autoCorrectedXPaths == null) {
+            autoCorrectedXPaths = indexXPaths(autoCorrected);
+        }
+        return autoCorrectedXPaths.contains(propertyName);
+    }
+
+    protected static Set<String> indexXPaths(Set<Map<String, String>> autoValues) {
+        Set<String> xpaths = new HashSet<>(autoValues.size() * 2);
+        autoValues.forEach(val -> xpaths.add(val.get("xpath")));
+        return xpaths;
     }
 
     /**
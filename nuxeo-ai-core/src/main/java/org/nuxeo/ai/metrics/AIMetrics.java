@@ -53,6 +53,13 @@ public class AIMetrics {
         return insightPreConversionTime;
     }
 
+    /**
+     * Gets the timer holding the prediction latency distribution of a model
+     */
+    public Timer getModelPredictionTime(String modelId) {
+        return registry.timer(MetricRegistry.name(getInsightName(), "model", modelId, "predictionTime"));
+    }
+
     /**
      * Method removes all class defined metrics from shared registry of ${@link MetricRegistry}
      */
@@ -18,20 +18,35 @@
  */
 package org.nuxeo.ai.services;
 
+import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static org.nuxeo.ai.AIConstants.AI_KIND_DIRECTORY;
+import static org.nuxeo.ai.audit.AuditBuffer.AUDIT_BUFFER_BATCH_SIZE;
+import static org.nuxeo.ai.audit.AuditBuffer.AUDIT_BUFFER_CAPACITY;
+import static org.nuxeo.ai.audit.AuditBuffer.AUDIT_BUFFER_FLUSH_INTERVAL;
+import static org.nuxeo.ai.audit.AuditBuffer.DEFAULT_BATCH_SIZE;
+import static org.nuxeo.ai.audit.AuditBuffer.DEFAULT_CAPACITY;
+import static org.nuxeo.ai.audit.AuditBuffer.DEFAULT_FLUSH_INTERVAL;
+import static org.nuxeo.ai.enrichment.EnrichmentNearCache.DEFAULT_MAX_BYTES;
+import static org.nuxeo.ai.enrichment.EnrichmentNearCache.DEFAULT_TTL;
+import static org.nuxeo.ai.enrichment.EnrichmentNearCache.NEAR_CACHE_MAX_BYTES;
+import static org.nuxeo.ai.enrichment.EnrichmentNearCache.NEAR_CACHE_TTL;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ai.audit.AuditBuffer;
 import org.nuxeo.ai.bulk.RecordWriter;
 import org.nuxeo.ai.bulk.RecordWriterDescriptor;
 import org.nuxeo.ai.enrichment.EnrichmentDescriptor;
+import org.nuxeo.ai.enrichment.EnrichmentNearCache;
 import org.nuxeo.ai.enrichment.EnrichmentProvider;
 import org.nuxeo.ai.enrichment.EnrichmentSupport;
 import org.nuxeo.ai.metrics.AIMetrics;
@@ -39,6 +54,8 @@ import org.nuxeo.ecm.core.schema.types.resolver.ObjectResolverService;
 import org.nuxeo.ecm.core.transientstore.api.TransientStore;
 import org.nuxeo.ecm.core.transientstore.api.TransientStoreService;
 import org.nuxeo.ecm.directory.DirectoryEntryResolver;
+import org.nuxeo.ecm.platform.audit.api.AuditLogger;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeEntry;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
 import org.nuxeo.runtime.api.Framework;
@@ -46,6 +63,8 @@ import org.nuxeo.runtime.model.Component;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.services.config.ConfigurationService;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
  * Provides one or more services using AI
@@ -70,6 +89,12 @@ public class AIComponent extends DefaultComponent {
 
     protected DirectoryEntryResolver kindResolver;
 
+    protected EnrichmentNearCache nearCache;
+
+    protected volatile AuditBuffer auditBuffer;
+
+    protected final ThreadLocal<PendingAuditEntries> pendingAuditEntries = new ThreadLocal<>();
+
     @Override
     public void registerContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
         if (ENRICHMENT_XP.equals(extensionPoint)) {
@@ -97,6 +122,14 @@ public class AIComponent extends DefaultComponent {
     public void start(ComponentContext context) {
         super.start(context);
         metrics.register();
+        ConfigurationService cs = Framework.getService(ConfigurationService.class);
+        nearCache = new EnrichmentNearCache(cs.getLong(NEAR_CACHE_MAX_BYTES, DEFAULT_MAX_BYTES),
+                cs.getLong(NEAR_CACHE_TTL, DEFAULT_TTL));
+        nearCache.register();
+        auditBuffer = new AuditBuffer((int) cs.getLong(AUDIT_BUFFER_CAPACITY, DEFAULT_CAPACITY),
+                (int) cs.getLong(AUDIT_BUFFER_BATCH_SIZE, DEFAULT_BATCH_SIZE),
+                cs.getLong(AUDIT_BUFFER_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+        auditBuffer.register();
         getKindResolver();
         enrichmentConfigs.values().forEach(descriptor -> {
             if (!enrichmentProviders.containsKey(descriptor.name)) {
@@ -115,6 +148,59 @@ public class AIComponent extends DefaultComponent {
     public void stop(ComponentContext context) throws InterruptedException {
         super.stop(context);
         metrics.unregister();
+        writers.values().forEach(RecordWriter::close);
+        writers.clear();
+        if (nearCache != null) {
+            nearCache.invalidateAll();
+            nearCache.unregister();
+            nearCache = null;
+        }
+        if (auditBuffer != null) {
+            auditBuffer.close();
+            auditBuffer.unregister();
+            auditBuffer = null;
+        }
+    }
+
+    /**
+     * @return the buffer writing the AI audit entries, null when the component is stopped
+     */
+    public AuditBuffer getAuditBuffer() {
+        return auditBuffer;
+    }
+
+    /**
+     * Adds an AI audit entry to the buffer, the entry is written directly when the component is stopped. Entries added
+     * within a transaction are only added once it is committed, they are discarded on rollback.
+     */
+    public void addAuditEntry(LogEntry entry) {
+        if (TransactionHelper.isTransactionActive()) {
+            getPendingAuditEntries().entries.add(entry);
+        } else {
+            writeAuditEntries(singletonList(entry));
+        }
+    }
+
+    /**
+     * Gets the audit entries of the current transaction, registering them to be added after commit.
+     */
+    protected PendingAuditEntries getPendingAuditEntries() {
+        PendingAuditEntries entries = pendingAuditEntries.get();
+        if (entries == null || entries.completed) {
+            entries = new PendingAuditEntries();
+            TransactionHelper.registerSynchronization(entries);
+            pendingAuditEntries.set(entries);
+        }
+        return entries;
+    }
+
+    protected void writeAuditEntries(List<LogEntry> entries) {
+        AuditBuffer buffer = auditBuffer;
+        if (buffer != null) {
+            entries.forEach(buffer::add);
+        } else {
+            Framework.getService(AuditLogger.class).addLogEntries(entries);
+        }
     }
 
     /**
@@ -124,6 +210,13 @@ public class AIComponent extends DefaultComponent {
         return metrics;
     }
 
+    /**
+     * @return the in-process cache in front of the enrichment KeyValueStore, null if the component isn't started
+     */
+    public EnrichmentNearCache getEnrichmentNearCache() {
+        return nearCache;
+    }
+
     /**
      * Initialize an enrichment descriptor
      */
@@ -228,4 +321,37 @@ public class AIComponent extends DefaultComponent {
     public RecordWriter getRecordWriter(String name) {
         return writers.get(name);
     }
+
+    /**
+     * The audit entries added within a transaction, added to the buffer once it is committed.
+     */
+    protected class PendingAuditEntries implements Synchronization {
+
+        protected final List<LogEntry> entries = new ArrayList<>();
+
+        protected volatile boolean completed;
+
+        @Override
+        public void beforeCompletion() {
+            // nothing to do
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            completed = true;
+            if (pendingAuditEntries.get() == this) {
+                pendingAuditEntries.remove();
+            }
+            if (status == Status.STATUS_COMMITTED) {
+                try {
+                    writeAuditEntries(entries);
+                } catch (RuntimeException e) {
+                    log.error("Unable to add " + entries.size() + " audit entries of a committed transaction", e);
+                }
+            } else if (log.isDebugEnabled()) {
+                log.debug("Discarding " + entries.size() + " audit entries of a rolled back transaction");
+            }
+            entries.clear();
+        }
+    }
 }
@@ -40,6 +40,11 @@ public interface DocMetadataService {
      */
     DocumentModel saveEnrichment(CoreSession session, EnrichmentMetadata metadata);
 
+    /**
+     * Saves several enrichment metadata of the same document at once and returns the DocumentModel.
+     */
+    DocumentModel saveEnrichment(CoreSession session, List<EnrichmentMetadata> metadata);
+
     /**
      * Sets the document properties for autofill/auto correct and history information.
      */
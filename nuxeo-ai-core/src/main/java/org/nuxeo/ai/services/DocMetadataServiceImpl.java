@@ -22,13 +22,20 @@ import static org.nuxeo.ai.AIConstants.ENRICHMENT_FACET;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_INPUT_DOCPROP_PROPERTY;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_ITEMS;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_MODEL;
+import static org.nuxeo.ai.AIConstants.ENRICHMENT_RAW_KEY_PROPERTY;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_SCHEMA_NAME;
+import static org.nuxeo.ai.AIConstants.NORMALIZED_PROPERTY;
+import static org.nuxeo.ai.AIConstants.SUGGESTION_CONFIDENCE;
+import static org.nuxeo.ai.AIConstants.SUGGESTION_LABEL;
+import static org.nuxeo.ai.AIConstants.SUGGESTION_LABELS;
 import static org.nuxeo.ai.AIConstants.SUGGESTION_PROPERTY;
 import static org.nuxeo.ai.AIConstants.SUGGESTION_SUGGESTIONS;
+import static org.nuxeo.ai.AIConstants.SUGGESTION_TIMESTAMP;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.MAPPER;
 import static org.nuxeo.ecm.core.event.impl.DocumentEventContext.COMMENT_PROPERTY_KEY;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,12 +44,15 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -67,6 +77,8 @@ import org.nuxeo.ecm.platform.audit.impl.ExtendedInfoImpl;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.DefaultComponent;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * An implementation of DocMetadataService
@@ -75,6 +87,12 @@ public class DocMetadataServiceImpl extends DefaultComponent implements DocMetad
 
     public static final String ENRICHMENT_ADDED = "ENRICHMENT_ADDED";
 
+    /**
+     * The fields of the normalized JSON that change on every enrichment, the creation date and the transient raw key.
+     * The raw content is compared separately.
+     */
+    protected static final List<String> NORMALIZED_RUN_FIELDS = Arrays.asList("created", "rawKey");
+
     protected static final TypeReference<List<AutoHistory>> HISTORY_TYPE = new TypeReference<List<AutoHistory>>() {
     };
 
@@ -102,43 +120,177 @@ public class DocMetadataServiceImpl extends DefaultComponent implements DocMetad
 
     @Override
     public DocumentModel saveEnrichment(CoreSession session, EnrichmentMetadata metadata) {
+        return saveEnrichment(session, Collections.singletonList(metadata));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public DocumentModel saveEnrichment(CoreSession session, List<EnrichmentMetadata> metadata) {
+        if (metadata.isEmpty()) {
+            return null;
+        }
+        String documentRef = metadata.get(0).context.documentRef;
         // TODO: Handle versions here?
         DocumentModel doc;
         try {
-            doc = session.getDocument(new IdRef(metadata.context.documentRef));
+            doc = session.getDocument(new IdRef(documentRef));
         } catch (DocumentNotFoundException e) {
-            log.info("Unable to save enrichment data for missing doc " + metadata.context.documentRef);
+            log.info("Unable to save enrichment data for missing doc " + documentRef);
             return null;
         }
 
-        Map<String, Object> anItem = metadata.toMap();
-        if (anItem != null) {
+        List<Map<String, Object>> enrichmentList = null;
+        if (doc.hasFacet(ENRICHMENT_FACET)) {
+            enrichmentList = (List<Map<String, Object>>) doc.getProperty(ENRICHMENT_SCHEMA_NAME, ENRICHMENT_ITEMS);
+        }
+        Map<String, Map<String, Object>> enrichmentByKey = indexEnrichment(enrichmentList);
+        List<String> modifiedModels = new ArrayList<>(metadata.size());
+        for (EnrichmentMetadata enrichment : metadata) {
+            if (!documentRef.equals(enrichment.context.documentRef)) {
+                throw new IllegalArgumentException("Enrichment metadata of several documents: " + documentRef + ", "
+                        + enrichment.context.documentRef);
+            }
+            if (updateEnrichment(enrichmentByKey, enrichment)) {
+                modifiedModels.add(enrichment.getModelName());
+            }
+        }
+
+        // Only write when the content changed, an identical enrichment must not dirty the document
+        if (!modifiedModels.isEmpty()) {
             if (!doc.hasFacet(ENRICHMENT_FACET)) {
                 doc.addFacet(ENRICHMENT_FACET);
             }
-            @SuppressWarnings("unchecked")
-            List<Map<String, Object>> enrichmentList = (List<Map<String, Object>>) doc.getProperty(
-                    ENRICHMENT_SCHEMA_NAME, ENRICHMENT_ITEMS);
-            if (enrichmentList == null) {
-                enrichmentList = new ArrayList<>(1);
-            }
-            Collection<Map<String, Object>> allEnriched = updateEnrichment(enrichmentList, anItem);
-            doc.setProperty(ENRICHMENT_SCHEMA_NAME, ENRICHMENT_ITEMS, allEnriched);
+            doc.setProperty(ENRICHMENT_SCHEMA_NAME, ENRICHMENT_ITEMS, new ArrayList<>(enrichmentByKey.values()));
             doc.putContextData(ENRICHMENT_ADDED, Boolean.TRUE);
-            raiseEvent(doc, ENRICHMENT_MODIFIED, null, metadata.getModelName());
+            for (String modelName : modifiedModels) {
+                raiseEvent(doc, ENRICHMENT_MODIFIED, null, modelName);
+            }
         }
         return doc;
     }
 
     /**
-     * Updates enrichment, ensures we have one enrichment entry per model/version and input
+     * Indexes the enrichment items by unique key, keeping their order
      */
-    protected Collection<Map<String, Object>> updateEnrichment(List<Map<String, Object>> original,
-            Map<String, Object> item) {
-        Map<String, Map<String, Object>> enrichmentByKey = new HashMap<>();
+    protected Map<String, Map<String, Object>> indexEnrichment(List<Map<String, Object>> original) {
+        if (original == null) {
+            return new LinkedHashMap<>();
+        }
+        Map<String, Map<String, Object>> enrichmentByKey = new LinkedHashMap<>(original.size() * 2);
         original.forEach(o -> enrichmentByKey.put(uniqueKey(o), o));
-        enrichmentByKey.put(uniqueKey(item), item);
-        return enrichmentByKey.values();
+        return enrichmentByKey;
+    }
+
+    /**
+     * Updates enrichment, ensures we have one enrichment entry per model/version and input. The raw and normalized
+     * blobs are only created when the entry is written.
+     *
+     * @return true if the item is new or differs from the existing entry
+     */
+    protected boolean updateEnrichment(Map<String, Map<String, Object>> enrichmentByKey,
+            EnrichmentMetadata enrichment) {
+        Map<String, Object> item = enrichment.toItem();
+        String key = uniqueKey(item);
+        Map<String, Object> existing = enrichmentByKey.get(key);
+        Blob rawBlob = enrichment.getRawBlob();
+        String normalized = enrichment.toNormalizedJson();
+        if (existing != null && sameSuggestions(existing.get(SUGGESTION_SUGGESTIONS), item.get(SUGGESTION_SUGGESTIONS))
+                && sameBlob((Blob) existing.get(ENRICHMENT_RAW_KEY_PROPERTY), rawBlob)
+                && sameNormalized((Blob) existing.get(NORMALIZED_PROPERTY), normalized)) {
+            return false;
+        }
+        if (rawBlob != null) {
+            item.put(ENRICHMENT_RAW_KEY_PROPERTY, rawBlob);
+        }
+        item.put(NORMALIZED_PROPERTY, EnrichmentMetadata.toNormalizedBlob(normalized));
+        enrichmentByKey.put(key, item);
+        return true;
+    }
+
+    /**
+     * Compares a stored raw blob with a new one by content
+     */
+    protected boolean sameBlob(Blob existing, Blob blob) {
+        if (existing == null || blob == null) {
+            return existing == blob;
+        }
+        if (existing.getLength() >= 0 && blob.getLength() >= 0 && existing.getLength() != blob.getLength()) {
+            return false;
+        }
+        try (InputStream before = existing.getStream(); InputStream after = blob.getStream()) {
+            return IOUtils.contentEquals(before, after);
+        } catch (IOException e) {
+            log.debug("Unable to compare raw blobs, the enrichment is rewritten", e);
+            return false;
+        }
+    }
+
+    /**
+     * Compares a stored normalized blob with a new normalized JSON. The creation date and the raw key are ignored, an
+     * identical re-enrichment keeps the stored entry, the creator, the inputs, the digests and the tags are compared.
+     */
+    protected boolean sameNormalized(Blob existing, String normalized) {
+        if (existing == null) {
+            return false;
+        }
+        try {
+            JsonNode before = MAPPER.readTree(existing.getString());
+            JsonNode after = MAPPER.readTree(normalized);
+            if (before instanceof ObjectNode && after instanceof ObjectNode) {
+                ((ObjectNode) before).remove(NORMALIZED_RUN_FIELDS);
+                ((ObjectNode) after).remove(NORMALIZED_RUN_FIELDS);
+            }
+            return before.equals(after);
+        } catch (IOException e) {
+            log.debug("Unable to compare normalized blobs, the enrichment is rewritten", e);
+            return false;
+        }
+    }
+
+    /**
+     * Compares stored suggestions with new ones, numbers are compared by value as the stored types differ
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean sameSuggestions(Object existing, Object suggestions) {
+        List<Map<String, Object>> before = existing == null ? Collections.emptyList()
+                : (List<Map<String, Object>>) existing;
+        List<Map<String, Object>> after = suggestions == null ? Collections.emptyList()
+                : (List<Map<String, Object>>) suggestions;
+        if (before.size() != after.size()) {
+            return false;
+        }
+        for (int i = 0; i < before.size(); i++) {
+            Map<String, Object> suggestionBefore = before.get(i);
+            Map<String, Object> suggestionAfter = after.get(i);
+            if (!Objects.equals(suggestionBefore.get(SUGGESTION_PROPERTY), suggestionAfter.get(SUGGESTION_PROPERTY))) {
+                return false;
+            }
+            List<Map<String, Object>> labelsBefore = (List<Map<String, Object>>) suggestionBefore.get(
+                    SUGGESTION_LABELS);
+            List<Map<String, Object>> labelsAfter = (List<Map<String, Object>>) suggestionAfter.get(SUGGESTION_LABELS);
+            int sizeBefore = labelsBefore == null ? 0 : labelsBefore.size();
+            int sizeAfter = labelsAfter == null ? 0 : labelsAfter.size();
+            if (sizeBefore != sizeAfter) {
+                return false;
+            }
+            for (int j = 0; j < sizeBefore; j++) {
+                Map<String, Object> labelBefore = labelsBefore.get(j);
+                Map<String, Object> labelAfter = labelsAfter.get(j);
+                if (!Objects.equals(labelBefore.get(SUGGESTION_LABEL), labelAfter.get(SUGGESTION_LABEL))
+                        || !sameNumber(labelBefore.get(SUGGESTION_CONFIDENCE), labelAfter.get(SUGGESTION_CONFIDENCE))
+                        || !sameNumber(labelBefore.get(SUGGESTION_TIMESTAMP), labelAfter.get(SUGGESTION_TIMESTAMP))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    protected static boolean sameNumber(Object before, Object after) {
+        if (before instanceof Number && after instanceof Number) {
+            return ((Number) before).doubleValue() == ((Number) after).doubleValue();
+        }
+        return Objects.equals(before, after);
     }
 
     /**
@@ -253,7 +405,7 @@ public class DocMetadataServiceImpl extends DefaultComponent implements DocMetad
             infos.put("value", one);
             logEntry.setExtendedInfos(infos);
 
-            audit.addLogEntries(Collections.singletonList(logEntry));
+            Framework.getService(AIComponent.class).addAuditEntry(logEntry);
         } else {
             log.warn("Audit Logger is not available");
         }
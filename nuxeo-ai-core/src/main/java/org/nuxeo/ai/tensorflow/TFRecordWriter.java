@@ -28,15 +28,22 @@ import static org.nuxeo.ai.pipes.functions.PropertyUtils.LIST_DELIMITER_PATTERN;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.TEXT_TYPE;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.MAPPER;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -58,6 +65,7 @@ import org.tensorflow.example.BytesList;
 import org.tensorflow.example.Feature;
 import org.tensorflow.example.Features;
 import org.tensorflow.example.Int64List;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.protobuf.ByteString;
 
 /**
@@ -67,8 +75,14 @@ public class TFRecordWriter extends AbstractRecordWriter {
 
     public static final String TFRECORD_MIME_TYPE = "application/x-tensorflow-record";
 
+    public static final String CONVERSION_THREADS_OPT = "conversionThreads";
+
+    public static final int DEFAULT_CONVERSION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
     private static final Logger log = LogManager.getLogger(TFRecordWriter.class);
 
+    protected static final ObjectReader BLOB_TEXT_READER = MAPPER.readerFor(BlobTextFromDocument.class);
+
     protected String imageConversionService;
 
     protected int imageWidth;
@@ -79,6 +93,13 @@ public class TFRecordWriter extends AbstractRecordWriter {
 
     protected String imageFormat;
 
+    protected int conversionThreads;
+
+    /**
+     * Converts the blobs of the records ahead of the writer, null when conversions run on the writer thread.
+     */
+    protected ExecutorService converter;
+
     public TFRecordWriter(String name) {
         super(name);
     }
@@ -135,6 +156,23 @@ public class TFRecordWriter extends AbstractRecordWriter {
                 EnrichmentUtils.DEFAULT_IMAGE_DEPTH);
         this.imageFormat = options.getOrDefault(ImagingConvertConstants.CONVERSION_FORMAT,
                 EnrichmentUtils.DEFAULT_CONVERSATION_FORMAT);
+        this.conversionThreads = optionAsInteger(options, CONVERSION_THREADS_OPT, DEFAULT_CONVERSION_THREADS);
+        if (conversionThreads > 1) {
+            converter = Executors.newFixedThreadPool(conversionThreads,
+                    new BasicThreadFactory.Builder().namingPattern("ai-tfrecord-convert-%d").daemon(true).build());
+        }
+    }
+
+    /**
+     * Closes the outputs and stops the conversion threads.
+     */
+    @Override
+    public void close() {
+        super.close();
+        if (converter != null) {
+            converter.shutdownNow();
+            converter = null;
+        }
     }
 
     @Override
@@ -142,15 +180,20 @@ public class TFRecordWriter extends AbstractRecordWriter {
         int written = 0;
         int skipped = 0;
         if (list != null && !list.isEmpty()) {
-            File file = getFile(list.get(0).getId());
-
-            try (FileOutputStream fos = new FileOutputStream(file, true);
-                    BufferedOutputStream bos = new BufferedOutputStream(fos, bufferSize);
-                    DataOutputStream dos = new DataOutputStream(bos)) {
-
-                TensorflowWriter writer = new TensorflowWriter(dos);
+            String id = list.get(0).getId();
+            TensorflowWriter writer = new TensorflowWriter(getOutput(id));
+            // Records are converted ahead of the writer, within a bounded window, and written in the list order
+            int window = converter == null ? 1 : conversionThreads * 2;
+            Deque<Future<byte[]>> converting = new ArrayDeque<>(window);
+            Iterator<ExportRecord> toConvert = list.iterator();
+            try {
                 for (ExportRecord record : list) {
-                    if (write(writer, record)) {
+                    while (converting.size() < window && toConvert.hasNext()) {
+                        converting.add(convert(toConvert.next()));
+                    }
+                    byte[] tfRecord = await(converting.poll());
+                    if (tfRecord != null) {
+                        writer.write(tfRecord);
                         record.setFailed(false);
                         written++;
                     } else {
@@ -158,7 +201,11 @@ public class TFRecordWriter extends AbstractRecordWriter {
                         skipped++;
                     }
                 }
+            } finally {
+                converting.forEach(future -> future.cancel(true));
             }
+            // The records must be on disk before the stream offsets are committed
+            flushOutput(id);
             if (list.size() != written) {
                 log.warn("{} writer had {} records, {} were written, {} were skipped.", name, list.size(), written,
                         skipped);
@@ -170,15 +217,10 @@ public class TFRecordWriter extends AbstractRecordWriter {
 
     @Override
     public boolean write(ExportRecord record) throws IOException {
-        File file = getFile(record.getId());
-        try (FileOutputStream fos = new FileOutputStream(file, true);
-                BufferedOutputStream bos = new BufferedOutputStream(fos, bufferSize);
-                DataOutputStream dos = new DataOutputStream(bos)) {
-
-            TensorflowWriter writer = new TensorflowWriter(dos);
-            if (write(writer, record)) {
-                return true;
-            }
+        TensorflowWriter writer = new TensorflowWriter(getOutput(record.getId()));
+        if (write(writer, record)) {
+            flushOutput(record.getId());
+            return true;
         }
 
         log.warn("Record for {} was skipped.", name);
@@ -186,23 +228,67 @@ public class TFRecordWriter extends AbstractRecordWriter {
     }
 
     protected boolean write(TensorflowWriter writer, ExportRecord record) throws IOException {
-        if (record.isFailed()) {
+        byte[] tfRecord = toTFRecord(record);
+        if (tfRecord == null) {
             return false;
         }
+        writer.write(tfRecord);
+        return true;
+    }
+
+    /**
+     * Converts the record to a TFRecord, on the converter threads if any.
+     */
+    protected Future<byte[]> convert(ExportRecord record) {
+        FutureTask<byte[]> task = new FutureTask<>(() -> toTFRecord(record));
+        if (converter == null) {
+            task.run();
+        } else {
+            try {
+                converter.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+        return task;
+    }
+
+    protected byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while converting records for " + name, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new NuxeoException("Unable to convert a record for " + name, cause);
+        }
+    }
+
+    /**
+     * Gets the TFRecord bytes of the record, null if the record can't be written.
+     */
+    protected byte[] toTFRecord(ExportRecord record) throws IOException {
+        if (record.isFailed()) {
+            return null;
+        }
 
         try {
-            BlobTextFromDocument blobText = MAPPER.readValue(record.getData(), BlobTextFromDocument.class);
+            BlobTextFromDocument blobText = BLOB_TEXT_READER.readValue(record.getData());
             Optional<Features> allFeatures = writeFeatures(blobText);
             if (allFeatures.isPresent() && allFeatures.get().getFeatureCount() > 0) {
-                TFRecord tfRecord = new TFRecord(blobText.getId(), allFeatures.get());
-                writer.write(tfRecord.toByteArray());
-                return true;
+                return new TFRecord(blobText.getId(), allFeatures.get()).toByteArray();
             } else {
-                return false;
+                return null;
             }
         } catch (NuxeoException e) {
             log.warn("Failed to process record {}", record.getId(), e);
-            return false;
+            return null;
         }
     }
 
@@ -15,25 +15,41 @@ limitations under the License.
 
 package org.nuxeo.ai.tensorflow.ext;
 
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 import java.util.zip.Checksum;
-import org.apache.commons.codec.digest.PureJavaCrc32C;
 
 /**
  * See https://github.com/tensorflow/ecosystem/blob/master/hadoop/src/main/java/org/tensorflow/hadoop/util/Crc32C.java
+ * <p>
+ * Backed by {@link CRC32C}, which the JVM turns into an intrinsic. The static helpers reuse one instance per thread.
  */
 public class Crc32C implements Checksum {
     private static final int MASK_DELTA = 0xa282ead8;
 
-    private PureJavaCrc32C crc32C;
+    private static final ThreadLocal<CRC32C> THREAD_CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    private final CRC32C crc32C;
 
     public static int maskedCrc32c(byte[] data) {
         return maskedCrc32c(data, 0, data.length);
     }
 
     public static int maskedCrc32c(byte[] data, int offset, int length) {
-        Crc32C crc32c = new Crc32C();
-        crc32c.update(data, offset, length);
-        return crc32c.getMaskedValue();
+        CRC32C crc = THREAD_CRC.get();
+        crc.reset();
+        crc.update(data, offset, length);
+        return mask((int) crc.getValue());
+    }
+
+    /**
+     * Return the masked crc of the remaining bytes of the buffer, its position is left unchanged.
+     */
+    public static int maskedCrc32c(ByteBuffer data) {
+        CRC32C crc = THREAD_CRC.get();
+        crc.reset();
+        crc.update(data.duplicate());
+        return mask((int) crc.getValue());
     }
 
     /**
@@ -64,7 +80,7 @@ public class Crc32C implements Checksum {
     }
 
     public Crc32C() {
-        crc32C = new PureJavaCrc32C();
+        crc32C = new CRC32C();
     }
 
     public int getMaskedValue() {
@@ -85,6 +101,11 @@ public class Crc32C implements Checksum {
         crc32C.update(b, off, len);
     }
 
+    @Override
+    public void update(ByteBuffer buffer) {
+        crc32C.update(buffer);
+    }
+
     @Override
     public long getValue() {
         return crc32C.getValue();
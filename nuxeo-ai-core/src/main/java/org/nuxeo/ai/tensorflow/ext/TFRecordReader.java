@@ -20,21 +20,77 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * See https://github.com/tensorflow/ecosystem/blob/master/hadoop/src/main/java/org/tensorflow/hadoop/util/TFRecordReader.java
+ * <p>
+ * Records are read into a single growing buffer. When reading from a {@link FileChannel} a range of the file can be
+ * given, so several readers can work on disjoint parts of the file using the offsets returned by
+ * {@link #index(FileChannel, boolean)}.
  */
 public class TFRecordReader {
+
+    protected static final int HEADER_LENGTH = 12;
+
+    protected static final int FOOTER_LENGTH = 4;
+
     private final DataInput input;
 
+    private final FileChannel channel;
+
+    private final long end;
+
     private final boolean crcCheck;
 
+    private final byte[] header = new byte[HEADER_LENGTH];
+
+    private final byte[] footer = new byte[FOOTER_LENGTH];
+
+    private byte[] buffer = new byte[1024];
+
+    private long position;
+
     public TFRecordReader(DataInput input, boolean crcCheck) {
         this.input = input;
+        this.channel = null;
+        this.end = Long.MAX_VALUE;
+        this.crcCheck = crcCheck;
+    }
+
+    /**
+     * Reads the records of the channel between start, which must be the offset of a record, and end.
+     */
+    public TFRecordReader(FileChannel channel, long start, long end, boolean crcCheck) {
+        this.input = null;
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
         this.crcCheck = crcCheck;
     }
 
+    /**
+     * Reads all the records of the channel.
+     */
+    public TFRecordReader(FileChannel channel, boolean crcCheck) throws IOException {
+        this(channel, 0, channel.size(), crcCheck);
+    }
+
+    /**
+     * Reads the next record, returns null at the end of the input.
+     */
     public byte[] read() throws IOException {
+        ByteBuffer data = readBuffer();
+        return data == null ? null : Arrays.copyOf(buffer, data.remaining());
+    }
+
+    /**
+     * Reads the next record without copying it, returns null at the end of the input.
+     * <p>
+     * The returned buffer is only valid until the next read.
+     */
+    public ByteBuffer readBuffer() throws IOException {
         /*
           TFRecord format:
           uint64 length
@@ -42,60 +98,126 @@ public class TFRecordReader {
           byte   data[length]
           uint32 masked_crc32_of_data
          */
-        byte[] lenBytes = new byte[8];
-        try {
-            // Only catch EOF here, other case means corrupted file
-            input.readFully(lenBytes);
-        } catch (EOFException eof) {
+        if (!readHeader()) {
             return null; // return null means EOF
         }
-        long len = fromInt64LE(lenBytes);
+        long len = fromInt64LE(header, 0);
 
         // Verify length crc32
-        if (!crcCheck) {
-            input.skipBytes(4);
-        } else {
-            byte[] lenCrc32Bytes = new byte[4];
-            input.readFully(lenCrc32Bytes);
-            int lenCrc32 = fromInt32LE(lenCrc32Bytes);
-            if (lenCrc32 != Crc32C.maskedCrc32c(lenBytes)) {
+        if (crcCheck) {
+            int lenCrc32 = fromInt32LE(header, 8);
+            int expected = Crc32C.maskedCrc32c(header, 0, 8);
+            if (lenCrc32 != expected) {
                 throw new IOException(
-                        "Length header crc32 checking failed: " + lenCrc32 + " != " + Crc32C.maskedCrc32c(lenBytes)
-                                + ", length = " + len);
+                        "Length header crc32 checking failed: " + lenCrc32 + " != " + expected + ", length = " + len);
             }
         }
 
         if (len > Integer.MAX_VALUE) {
             throw new IOException("Record size exceeds max value of int32: " + len);
         }
-        byte[] data = new byte[(int) len];
-        input.readFully(data);
+        int length = (int) len;
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        readFully(buffer, length);
+        readFully(footer, FOOTER_LENGTH);
 
         // Verify data crc32
-        if (!crcCheck) {
-            input.skipBytes(4);
+        if (crcCheck) {
+            int dataCrc32 = fromInt32LE(footer, 0);
+            int expected = Crc32C.maskedCrc32c(buffer, 0, length);
+            if (dataCrc32 != expected) {
+                throw new IOException("Data crc32 checking failed: " + dataCrc32 + " != " + expected);
+            }
+        }
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * Builds the offsets of the records of the channel, only the headers are read.
+     */
+    public static long[] index(FileChannel channel, boolean crcCheck) throws IOException {
+        long size = channel.size();
+        long[] offsets = new long[1024];
+        int count = 0;
+        byte[] header = new byte[HEADER_LENGTH];
+        long position = 0;
+        while (position < size) {
+            readFully(channel, ByteBuffer.wrap(header), position);
+            long len = fromInt64LE(header, 0);
+            if (crcCheck && fromInt32LE(header, 8) != Crc32C.maskedCrc32c(header, 0, 8)) {
+                throw new IOException("Length header crc32 checking failed at offset " + position);
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += HEADER_LENGTH + len + FOOTER_LENGTH;
+        }
+        if (position != size) {
+            throw new IOException("Truncated record at offset " + offsets[count - 1]);
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Splits the indexed records in at most parts contiguous ranges of roughly the same number of records.
+     *
+     * @return the boundaries of the ranges, range i goes from boundaries[i] to boundaries[i + 1]
+     */
+    public static long[] split(long[] index, long size, int parts) {
+        int ranges = Math.max(1, Math.min(parts, index.length));
+        long[] boundaries = new long[ranges + 1];
+        for (int i = 0; i < ranges; i++) {
+            boundaries[i] = index.length == 0 ? 0 : index[(int) ((long) i * index.length / ranges)];
+        }
+        boundaries[ranges] = size;
+        return boundaries;
+    }
+
+    private boolean readHeader() throws IOException {
+        if (channel != null) {
+            if (position >= end) {
+                return false;
+            }
+            readFully(header, HEADER_LENGTH);
+            return true;
+        }
+        try {
+            // Only catch EOF here, other case means corrupted file
+            input.readFully(header);
+            return true;
+        } catch (EOFException eof) {
+            return false;
+        }
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        if (channel != null) {
+            readFully(channel, ByteBuffer.wrap(bytes, 0, length), position);
+            position += length;
         } else {
-            byte[] dataCrc32Bytes = new byte[4];
-            input.readFully(dataCrc32Bytes);
-            int dataCrc32 = fromInt32LE(dataCrc32Bytes);
-            if (dataCrc32 != Crc32C.maskedCrc32c(data)) {
-                throw new IOException("Data crc32 checking failed: " + dataCrc32 + " != " + Crc32C.maskedCrc32c(data));
+            input.readFully(bytes, 0, length);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        long pos = position;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, pos);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at offset " + pos);
             }
+            pos += read;
         }
-        return data;
     }
 
-    private long fromInt64LE(byte[] data) {
-        assert data.length == 8;
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        return bb.getLong();
+    private static long fromInt64LE(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
     }
 
-    private int fromInt32LE(byte[] data) {
-        assert data.length == 4;
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        return bb.getInt();
+    private static int fromInt32LE(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
     }
 }
@@ -39,25 +39,23 @@ public class TensorflowWriter {
           byte   data[length]
           uint32 masked_crc32_of_data
          */
-        byte[] len = toInt64LE(length);
-        output.write(len);
-        output.write(toInt32LE(Crc32C.maskedCrc32c(len)));
-        output.write(record, offset, length);
-        output.write(toInt32LE(Crc32C.maskedCrc32c(record, offset, length)));
+        byte[] header = new byte[12];
+        ByteBuffer hb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        hb.putLong((long) length);
+        hb.putInt(Crc32C.maskedCrc32c(header, 0, 8));
+        byte[] dataCrc = toInt32LE(Crc32C.maskedCrc32c(record, offset, length));
+        // The output may be shared by several writers, a record must be written in one go
+        synchronized (output) {
+            output.write(header);
+            output.write(record, offset, length);
+            output.write(dataCrc);
+        }
     }
 
     public void write(byte[] record) throws IOException {
         write(record, 0, record.length);
     }
 
-    private byte[] toInt64LE(long data) {
-        byte[] buff = new byte[8];
-        ByteBuffer bb = ByteBuffer.wrap(buff);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        bb.putLong(data);
-        return buff;
-    }
-
     private byte[] toInt32LE(int data) {
         byte[] buff = new byte[4];
         ByteBuffer bb = ByteBuffer.wrap(buff);
@@ -19,27 +19,46 @@
  */
 package org.nuxeo.ai.bulk;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static junit.framework.TestCase.assertTrue;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.nuxeo.ai.bulk.AbstractRecordWriter.BLOB_PROVIDER_OPT;
 import static org.nuxeo.ai.enrichment.EnrichmentTestFeature.FILE_CONTENT;
 import static org.nuxeo.ai.enrichment.EnrichmentTestFeature.blobTestImage;
 import static org.nuxeo.ai.enrichment.EnrichmentTestFeature.blobTestPdf;
+import static org.nuxeo.ai.enrichment.EnrichmentUtils.CONVERSION_SERVICE;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.MAPPER;
+import static org.nuxeo.ai.tensorflow.TFRecordWriter.CONVERSION_THREADS_OPT;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
+import org.apache.commons.codec.digest.PureJavaCrc32C;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.ai.enrichment.EnrichmentTestFeature;
@@ -49,7 +68,10 @@ import org.nuxeo.ai.pipes.types.ExportRecord;
 import org.nuxeo.ai.sdk.objects.PropertyType;
 import org.nuxeo.ai.services.AIComponent;
 import org.nuxeo.ai.tensorflow.TFRecord;
+import org.nuxeo.ai.tensorflow.TFRecordWriter;
+import org.nuxeo.ai.tensorflow.ext.Crc32C;
 import org.nuxeo.ai.tensorflow.ext.TFRecordReader;
+import org.nuxeo.ai.tensorflow.ext.TensorflowWriter;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
@@ -115,7 +137,7 @@ public class TensorTest {
         for (int i = 0; i < numberOfRecords; ++i) {
             BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument("ixi" + i, "test", "aaf", "Picture", null);
             blobTextFromDoc.addProperty("dc:title", "my text " + i);
-            blobTextFromDoc.getProperties().put("ecm:primaryType", "Picture");
+            blobTextFromDoc.addProperty("ecm:primaryType", "Picture");
             byte[] bytes = MAPPER.writeValueAsBytes(blobTextFromDoc);
 
             records.add(ExportRecord.of(test_key, test_key, bytes));
@@ -123,7 +145,11 @@ public class TensorTest {
 
         writer.write(records);
         assertTrue(writer.exists(test_key));
+        // the records are flushed by the write, before the export completes
+        long flushed = ((AbstractRecordWriter) writer).getFile(test_key).length();
+        assertTrue(flushed > 0);
         Optional<Blob> blob = writer.complete(test_key);
+        assertEquals(flushed, blob.get().getLength());
         assertTrue(blob.isPresent());
         assertTrue(blob.get().getLength() > 0);
         // System.out.println("File: " + blob.getFile().getAbsolutePath());
@@ -143,7 +169,7 @@ public class TensorTest {
 
         for (int i = 0; i < numberOfRecords; ++i) {
             BlobTextFromDocument blobTextFromDoc = blobTestImage(blobManager);
-            blobTextFromDoc.getProperties().put("ecm:primaryType", "Picture");
+            blobTextFromDoc.addProperty("ecm:primaryType", "Picture");
             byte[] bytes = MAPPER.writeValueAsBytes(blobTextFromDoc);
             records.add(ExportRecord.of(test_key, test_key, bytes));
         }
@@ -182,7 +208,7 @@ public class TensorTest {
 
         for (int i = 0; i < numberOfRecords; ++i) {
             BlobTextFromDocument blobTextFromDoc = blobTestPdf(blobManager);
-            blobTextFromDoc.getProperties().put("ecm:primaryType", "TextPDF");
+            blobTextFromDoc.addProperty("ecm:primaryType", "TextPDF");
             byte[] bytes = MAPPER.writeValueAsBytes(blobTextFromDoc);
             records.add(ExportRecord.of(test_key, test_key, bytes));
         }
@@ -209,6 +235,210 @@ public class TensorTest {
         }
     }
 
+    @Test
+    public void testBatchWriter() throws IOException {
+        RecordWriter writer = aiComponent.getRecordWriter("ai/training");
+        int numberOfRecords = 100_000;
+        List<ExportRecord> singles = new ArrayList<>(numberOfRecords);
+        List<ExportRecord> batch = new ArrayList<>(numberOfRecords);
+        for (int i = 0; i < numberOfRecords; ++i) {
+            BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument("doc" + i, "test", "aaf", "Picture", null);
+            blobTextFromDoc.addProperty("dc:title", "my text " + i);
+            blobTextFromDoc.addProperty("ecm:primaryType", "Picture");
+            byte[] bytes = MAPPER.writeValueAsBytes(blobTextFromDoc);
+            singles.add(ExportRecord.of("singles", "singles", bytes));
+            batch.add(ExportRecord.of("batch", "batch", bytes));
+        }
+        ExportRecord failed = ExportRecord.fail("batch", "batch");
+        batch.add(failed);
+
+        long start = System.nanoTime();
+        for (ExportRecord record : singles) {
+            assertTrue(writer.write(record));
+        }
+        long singlesTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        assertEquals("Only the failed record is an error", 1, writer.write(batch));
+        long batchTime = System.nanoTime() - start;
+        assertTrue(failed.isFailed());
+        assertFalse(batch.get(0).isFailed());
+
+        LogManager.getLogger(TensorTest.class)
+                  .info("Wrote {} records/s one by one and {} records/s in a batch",
+                          numberOfRecords * 1_000_000_000L / singlesTime,
+                          numberOfRecords * 1_000_000_000L / batchTime);
+
+        Optional<Blob> singlesBlob = writer.complete("singles");
+        Optional<Blob> batchBlob = writer.complete("batch");
+        assertTrue(singlesBlob.isPresent());
+        assertTrue(batchBlob.isPresent());
+        assertEquals(numberOfRecords, countNumberOfExamples(batchBlob.get(), 2));
+        assertEquals(singlesBlob.get().getLength(), batchBlob.get().getLength());
+    }
+
+    @Test
+    public void testParallelImageConversion() throws IOException {
+        int numberOfRecords = 200;
+        List<ExportRecord> sequential = new ArrayList<>(numberOfRecords);
+        List<ExportRecord> parallel = new ArrayList<>(numberOfRecords);
+        for (int i = 0; i < numberOfRecords; ++i) {
+            BlobTextFromDocument blobTextFromDoc = blobTestImage(blobManager);
+            blobTextFromDoc.setId("img" + i);
+            blobTextFromDoc.addProperty("ecm:primaryType", "Picture");
+            byte[] bytes = MAPPER.writeValueAsBytes(blobTextFromDoc);
+            sequential.add(ExportRecord.of("sequential", "sequential", bytes));
+            parallel.add(ExportRecord.of("parallel", "parallel", bytes));
+        }
+        parallel.add(42, ExportRecord.fail("parallel", "parallel"));
+
+        TFRecordWriter sequentialWriter = new TFRecordWriter("ai/sequential");
+        sequentialWriter.init(Map.of(BLOB_PROVIDER_OPT, "test", CONVERSION_SERVICE, "specialConverter",
+                CONVERSION_THREADS_OPT, "1"));
+        TFRecordWriter parallelWriter = new TFRecordWriter("ai/parallel");
+        parallelWriter.init(Map.of(BLOB_PROVIDER_OPT, "test", CONVERSION_SERVICE, "specialConverter",
+                CONVERSION_THREADS_OPT, "4"));
+
+        try {
+            long start = System.nanoTime();
+            assertEquals(0, sequentialWriter.write(sequential));
+            long sequentialTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            assertEquals("Only the failed record is skipped", 1, parallelWriter.write(parallel));
+            long parallelTime = System.nanoTime() - start;
+            assertTrue(parallel.get(42).isFailed());
+            assertFalse(parallel.get(43).isFailed());
+
+            LogManager.getLogger(TensorTest.class)
+                      .info("Converted {} images/s on the writer thread and {} images/s with 4 threads",
+                              numberOfRecords * 1_000_000_000L / sequentialTime,
+                              numberOfRecords * 1_000_000_000L / parallelTime);
+
+            Optional<Blob> sequentialBlob = sequentialWriter.complete("sequential");
+            Optional<Blob> parallelBlob = parallelWriter.complete("parallel");
+            assertTrue(sequentialBlob.isPresent());
+            assertTrue(parallelBlob.isPresent());
+            assertEquals(sequentialBlob.get().getLength(), parallelBlob.get().getLength());
+            // the records are written in the order they were given, whatever the order of the conversions
+            DataInput input = new DataInputStream(new FileInputStream(parallelBlob.get().getFile()));
+            TFRecordReader tfRecordReader = new TFRecordReader(input, true);
+            byte[] exampleData;
+            int count = 0;
+            while ((exampleData = tfRecordReader.read()) != null) {
+                assertEquals("img" + count, TFRecord.from(exampleData).getDocId());
+                count++;
+            }
+            assertEquals(numberOfRecords, count);
+        } finally {
+            sequentialWriter.close();
+            parallelWriter.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentWriter() throws Exception {
+        AbstractRecordWriter writer = (AbstractRecordWriter) aiComponent.getRecordWriter("ai/training");
+        String test_key = "pooled";
+        int threads = 4;
+        int recordsPerThread = 2500;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < recordsPerThread; ++i) {
+                    BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument("doc" + thread + "_" + i, "test",
+                            "aaf", "Picture", null);
+                    blobTextFromDoc.addProperty("dc:title", "my text " + i);
+                    blobTextFromDoc.addProperty("ecm:primaryType", "Picture");
+                    ExportRecord record = ExportRecord.of(test_key, test_key, MAPPER.writeValueAsBytes(blobTextFromDoc));
+                    if (i % 2 == 0) {
+                        assertTrue(writer.write(record));
+                    } else {
+                        assertEquals(0, writer.write(Collections.singletonList(record)));
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        // A single stream is kept open for the whole export
+        assertEquals(1, writer.outputs.size());
+        Optional<Blob> blob = writer.complete(test_key);
+        assertTrue(writer.outputs.isEmpty());
+        assertTrue(blob.isPresent());
+        assertEquals(threads * recordsPerThread, countNumberOfExamples(blob.get(), 2));
+    }
+
+    @Test
+    public void testCrc32C() {
+        Random random = new Random(7);
+        for (int size : new int[] { 0, 1, 7, 8, 63, 1024, 65_537 }) {
+            byte[] data = new byte[size + 3];
+            random.nextBytes(data);
+            PureJavaCrc32C reference = new PureJavaCrc32C();
+            reference.update(data, 3, size);
+            int expected = Crc32C.mask((int) reference.getValue());
+
+            assertEquals(expected, Crc32C.maskedCrc32c(data, 3, size));
+            assertEquals(expected, Crc32C.maskedCrc32c(ByteBuffer.wrap(data, 3, size)));
+            ByteBuffer direct = ByteBuffer.allocateDirect(size);
+            direct.put(data, 3, size).flip();
+            assertEquals(expected, Crc32C.maskedCrc32c(direct));
+            assertEquals("The buffer position must not move", 0, direct.position());
+            assertEquals((int) reference.getValue(), Crc32C.unmask(expected));
+        }
+    }
+
+    @Test
+    public void testParallelRead() throws Exception {
+        int numberOfRecords = 5000;
+        File file = Framework.createTempFile("tf_ranges", "tfrecord");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            TensorflowWriter tfWriter = new TensorflowWriter(dos);
+            for (int i = 0; i < numberOfRecords; ++i) {
+                // Variable sizes so the reader has to grow its buffer
+                tfWriter.write(StringUtils.repeat(String.valueOf(i), i % 100 + 1).getBytes(UTF_8));
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] index = TFRecordReader.index(channel, true);
+            assertEquals(numberOfRecords, index.length);
+            long[] ranges = TFRecordReader.split(index, channel.size(), 4);
+            assertEquals(5, ranges.length);
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < ranges.length - 1; i++) {
+                TFRecordReader reader = new TFRecordReader(channel, ranges[i], ranges[i + 1], true);
+                futures.add(executor.submit(() -> {
+                    int count = 0;
+                    ByteBuffer data;
+                    while ((data = reader.readBuffer()) != null) {
+                        assertTrue(data.remaining() > 0);
+                        count++;
+                    }
+                    return count;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> future : futures) {
+                total += future.get(1, TimeUnit.MINUTES);
+            }
+            executor.shutdown();
+            assertEquals(numberOfRecords, total);
+
+            TFRecordReader reader = new TFRecordReader(channel, index[42], channel.size(), true);
+            assertEquals(StringUtils.repeat("42", 43), new String(reader.read(), UTF_8));
+        }
+    }
+
     @Test
     public void testMissing() throws IOException {
         AbstractRecordWriter writer = (AbstractRecordWriter) aiComponent.getRecordWriter("ai/validation");
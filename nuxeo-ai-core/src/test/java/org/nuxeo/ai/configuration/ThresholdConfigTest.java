@@ -70,6 +70,44 @@ public class ThresholdConfigTest {
         assertEquals("Global threshold wasn't applied", 0.5f, thsldTitle, 0.01f);
     }
 
+    @Test
+    @Deploy({ "org.nuxeo.ai.ai-core:OSGI-INF/threshold-config-test.xml" })
+    public void shouldResolveAllThresholdsAtOnce() {
+        DocumentModel file = coreSession.createDocumentModel("/", "MyFile", "File");
+        Thresholds title = thresholdService.getThresholds(file, "dc:title");
+        assertEquals(0.75, title.getThreshold(), 0.00001);
+        assertEquals(0.76, title.getAutoFillThreshold(), 0.00001);
+        assertEquals(0.77, title.getAutoCorrectThreshold(), 0.00001);
+
+        Thresholds content = thresholdService.getThresholds(file, "file:content");
+        assertEquals(0.88, content.getThreshold(), 0.00001);
+        assertEquals(0.88, content.getAutoFillThreshold(), 0.00001);
+        assertEquals(0.88, content.getAutoCorrectThreshold(), 0.00001);
+
+        Thresholds description = thresholdService.getThresholds(file, "dc:description");
+        assertEquals(thresholdService.getThreshold(file, "dc:description"), description.getThreshold(), 0.00001);
+        assertEquals(0.65, description.getAutoFillThreshold(), 0.00001);
+        assertEquals(0.66, description.getAutoCorrectThreshold(), 0.00001);
+
+        ThresholdIndex.DocumentThresholds all = thresholdService.getThresholds(file);
+        assertEquals(0.76, all.get("dc:title").getAutoFillThreshold(), 0.00001);
+        assertEquals(0.88, all.get("file:content").getThreshold(), 0.00001);
+        assertEquals(thresholdService.getThreshold(file, "dc:unknown"), all.get("dc:unknown").getThreshold(),
+                0.00001);
+
+        // A reload swaps the index
+        DocumentModel note = coreSession.createDocumentModel("/", "MyNote", "Note");
+        ThresholdConfiguratorDescriptor descriptor = new ThresholdConfiguratorDescriptor();
+        descriptor.type = "Note";
+        ThresholdConfiguratorDescriptor.Threshold threshold = new ThresholdConfiguratorDescriptor.Threshold();
+        threshold.xpath = "dc:title";
+        threshold.value = 0.9f;
+        descriptor.thresholds.add(threshold);
+        thresholdService.reload(descriptor);
+        assertEquals(0.9, thresholdService.getThreshold(note, "dc:title"), 0.00001);
+        assertEquals(0.75, thresholdService.getThreshold(file, "dc:title"), 0.00001);
+    }
+
     @Test
     public void shouldUseUsersConfig() {
         DocumentModel fakeDoc = coreSession.createDocumentModel("/", "FakeDoc", "Document");
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2022 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Nuxeo
+ */
+package org.nuxeo.ai.enrichment;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.nuxeo.ai.pipes.types.BlobTextFromDocument;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * A local stub of a remote enrichment provider that supports batches. Each call costs a fixed latency.
+ */
+public class BatchingEnrichmentProvider extends AbstractEnrichmentProvider {
+
+    protected long latency;
+
+    protected final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public void init(EnrichmentDescriptor descriptor) {
+        super.init(descriptor);
+        this.latency = Long.parseLong(descriptor.options.getOrDefault("latency", "10"));
+    }
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public Collection<EnrichmentMetadata> enrich(BlobTextFromDocument blobTextFromDoc) {
+        roundTrip();
+        return Collections.singletonList(new EnrichmentMetadata.Builder("test", name, blobTextFromDoc).build());
+    }
+
+    @Override
+    public List<Collection<EnrichmentMetadata>> enrich(List<BlobTextFromDocument> blobTextFromDocs) {
+        roundTrip();
+        return blobTextFromDocs.stream()
+                               .map(b -> Collections.singletonList(
+                                       new EnrichmentMetadata.Builder("test", name, b).build()))
+                               .collect(Collectors.toList());
+    }
+
+    public int getCalls() {
+        return calls.get();
+    }
+
+    protected void roundTrip() {
+        calls.incrementAndGet();
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+    }
+}
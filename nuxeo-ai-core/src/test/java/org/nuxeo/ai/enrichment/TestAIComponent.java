@@ -23,13 +23,19 @@ import static java.util.Collections.singleton;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.assertNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.nuxeo.ai.enrichment.EnrichmentTestFeature.FILE_CONTENT;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.toRecord;
 import static org.nuxeo.ai.services.AIComponent.ENRICHMENT_XP;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
 import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.ai.pipes.types.BlobTextFromDocument;
@@ -54,6 +60,8 @@ import org.nuxeo.runtime.test.runner.FeaturesRunner;
 @Deploy({ "org.nuxeo.ecm.platform.tag", "org.nuxeo.ai.ai-core:OSGI-INF/enrichment-test.xml" })
 public class TestAIComponent {
 
+    private static final Logger log = LogManager.getLogger(TestAIComponent.class);
+
     @Inject
     protected AIComponent aiComponent;
 
@@ -191,9 +199,106 @@ public class TestAIComponent {
         assertEquals(1, metrics.fatal);
     }
 
+    @Test
+    @Deploy({ "org.nuxeo.ai.ai-core:OSGI-INF/batch-enrichment-test.xml" })
+    public void testBatchEnrichment() {
+        int numRecords = 100;
+        ComputationContextImpl testContext = (ComputationContextImpl) setupComputationContext();
+        Record record = setupTestRecord();
+
+        EnrichingStreamProcessor.EnrichmentMetrics metrics = new EnrichingStreamProcessor.EnrichmentMetrics(
+                "batchSingle");
+        EnrichingStreamProcessor.EnrichmentComputation computation = new EnrichingStreamProcessor.EnrichmentComputation(
+                1, "batchSingle", "batch.single", metrics, false);
+        computation.init(testContext);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numRecords; i++) {
+            computation.processRecord(testContext, null, record);
+        }
+        long singleDuration = Math.max(System.currentTimeMillis() - start, 1);
+        BatchingEnrichmentProvider single = (BatchingEnrichmentProvider) aiComponent.getEnrichmentProvider(
+                "batch.single");
+        assertEquals(numRecords, single.getCalls());
+        assertEquals(numRecords, metrics.success);
+        assertEquals(numRecords, testContext.getRecords("o1").size());
+
+        testContext = (ComputationContextImpl) setupComputationContext();
+        metrics = new EnrichingStreamProcessor.EnrichmentMetrics("batchMulti");
+        computation = new EnrichingStreamProcessor.EnrichmentComputation(1, "batchMulti", "batch.multi", metrics,
+                false, 20, 500, 1);
+        computation.init(testContext);
+        start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            computation.processRecord(testContext, null, record);
+        }
+        BatchingEnrichmentProvider multi = (BatchingEnrichmentProvider) aiComponent.getEnrichmentProvider(
+                "batch.multi");
+        assertEquals(0, multi.getCalls());
+        assertFalse("Pending records must not be checkpointed", testContext.requireCheckpoint());
+        for (int i = 0; i < numRecords; i++) {
+            computation.processRecord(testContext, null, record);
+        }
+        assertEquals("Only full batches are sent", 5, multi.getCalls());
+        assertEquals(numRecords, testContext.getRecords("o1").size());
+
+        // The time window flushes the remaining records
+        computation.processTimer(testContext, EnrichingStreamProcessor.EnrichmentComputation.TIMER_BATCH,
+                System.currentTimeMillis());
+        long batchDuration = Math.max(System.currentTimeMillis() - start, 1);
+        assertEquals(6, multi.getCalls());
+        assertEquals(6, metrics.batches);
+        assertEquals(numRecords + 5, metrics.success);
+        assertEquals(numRecords + 5, testContext.getRecords("o1").size());
+        assertTrue(testContext.requireCheckpoint());
+
+        log.info("Enrichment throughput: single {} records/s, batched {} records/s", numRecords * 1000 / singleDuration,
+                (numRecords + 5) * 1000 / batchDuration);
+    }
+
+    @Test
+    @Deploy({ "org.nuxeo.ai.ai-core:OSGI-INF/batch-enrichment-test.xml" })
+    public void testAsyncEnrichment() {
+        int numRecords = 50;
+        ComputationContextImpl testContext = (ComputationContextImpl) setupComputationContext();
+        EnrichingStreamProcessor.EnrichmentMetrics metrics = new EnrichingStreamProcessor.EnrichmentMetrics(
+                "asyncEnrich");
+        EnrichingStreamProcessor.EnrichmentComputation computation = new EnrichingStreamProcessor.EnrichmentComputation(
+                1, "asyncEnrich", "batch.async", metrics, false, 1, 500, 4);
+        computation.init(testContext);
+        List<String> docIds = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numRecords; i++) {
+            String docId = "doc" + i;
+            docIds.add(docId);
+            computation.processRecord(testContext, null, setupTestRecord(docId));
+            assertTrue(metrics.inFlight <= 4);
+        }
+        assertFalse("Records in flight must not be checkpointed", testContext.requireCheckpoint());
+
+        // The timer doesn't wait for the calls in flight, it is set again until they are done
+        long deadline = System.currentTimeMillis() + 10_000;
+        do {
+            computation.processTimer(testContext, EnrichingStreamProcessor.EnrichmentComputation.TIMER_BATCH,
+                    System.currentTimeMillis());
+        } while (!testContext.requireCheckpoint() && System.currentTimeMillis() < deadline);
+        long duration = Math.max(System.currentTimeMillis() - start, 1);
+        assertTrue(testContext.requireCheckpoint());
+        assertEquals(0, metrics.inFlight);
+        assertEquals(numRecords, metrics.success);
+        List<String> written = testContext.getRecords("o1").stream().map(Record::getKey).collect(Collectors.toList());
+        assertEquals("Results must be written in order", docIds, written);
+        computation.destroy();
+
+        log.info("Async enrichment throughput: {} records/s", numRecords * 1000 / duration);
+    }
+
     protected Record setupTestRecord() {
+        return setupTestRecord("xderftgt");
+    }
+
+    protected Record setupTestRecord(String docId) {
         BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument();
-        blobTextFromDoc.setId("xderftgt");
+        blobTextFromDoc.setId(docId);
         blobTextFromDoc.setRepositoryName("test");
         blobTextFromDoc.addBlob(FILE_CONTENT, "img",
                 new BlobMetaImpl("test", "application/pdf", "xyx", "xyz", null, 45L));
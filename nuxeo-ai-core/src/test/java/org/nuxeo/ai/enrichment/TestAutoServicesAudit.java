@@ -22,6 +22,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_ITEMS;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_SCHEMA_NAME;
 import static org.nuxeo.ai.auto.AutoService.AUTO_ACTION.CORRECT;
@@ -32,26 +33,32 @@ import static org.nuxeo.ecm.platform.audit.api.BuiltinLogEntryData.LOG_EVENT_ID;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.ai.AIConstants;
+import org.nuxeo.ai.audit.AuditBuffer;
 import org.nuxeo.ai.auto.AutoHistory;
 import org.nuxeo.ai.auto.AutoService;
 import org.nuxeo.ai.metadata.SuggestionMetadataWrapper;
+import org.nuxeo.ai.services.AIComponent;
 import org.nuxeo.ai.services.DocMetadataService;
 import org.nuxeo.ai.services.ModelUsageService;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.PathRef;
 import org.nuxeo.ecm.core.query.sql.model.Predicate;
 import org.nuxeo.ecm.core.query.sql.model.Predicates;
 import org.nuxeo.ecm.platform.audit.AuditFeature;
+import org.nuxeo.ecm.platform.audit.api.AuditLogger;
 import org.nuxeo.ecm.platform.audit.api.AuditQueryBuilder;
 import org.nuxeo.ecm.platform.audit.api.AuditReader;
 import org.nuxeo.ecm.platform.audit.api.LogEntry;
@@ -61,6 +68,7 @@ import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.TransactionalFeature;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RunWith(FeaturesRunner.class)
@@ -86,6 +94,9 @@ public class TestAutoServicesAudit {
     @Inject
     protected AuditFeature auditFeature;
 
+    @Inject
+    protected AIComponent aiComponent;
+
     @Before
     public void reset() {
         session.removeChildren(new PathRef("/"));
@@ -123,6 +134,7 @@ public class TestAutoServicesAudit {
         assertFalse("Property hasn't been AutoCorrected.", wrapper.isAutoCorrected("dc:format"));
         assertEquals("cat", testDoc.getPropertyValue("dc:format"));
 
+        flushAudit();
         AuditQueryBuilder qb = new AuditQueryBuilder();
         Predicate predicate = Predicates.eq(LOG_CATEGORY, "AI");
         qb.predicate(predicate).and(Predicates.eq(LOG_EVENT_ID, AIConstants.AUTO.FILLED.eventName()));
@@ -175,6 +187,7 @@ public class TestAutoServicesAudit {
         assertTrue(wrapper.getAutoProperties().isEmpty());
         assertTrue(history.isEmpty());
 
+        flushAudit();
         AuditQueryBuilder qb = new AuditQueryBuilder();
         Predicate predicate = Predicates.eq(LOG_CATEGORY, "AI");
         qb.predicate(predicate).and(Predicates.eq(LOG_EVENT_ID, AIConstants.AUTO.CORRECTED.eventName()));
@@ -192,6 +205,112 @@ public class TestAutoServicesAudit {
         assertThat(perModelAudit).hasSize(1);
     }
 
+    @Test
+    public void testBufferedAudit() {
+        AuditBuffer buffer = aiComponent.getAuditBuffer();
+        AuditLogger audit = Framework.getService(AuditLogger.class);
+        for (int i = 0; i < 250; i++) {
+            LogEntry entry = audit.newLogEntry();
+            entry.setCategory("AI");
+            entry.setEventId("bufferedTest");
+            entry.setEventDate(new Date());
+            buffer.add(entry);
+        }
+        flushAudit();
+        assertEquals(0, buffer.size());
+
+        AuditQueryBuilder qb = new AuditQueryBuilder();
+        qb.predicate(Predicates.eq(LOG_CATEGORY, "AI")).and(Predicates.eq(LOG_EVENT_ID, "bufferedTest"));
+        assertThat(auditReader.queryLogs(qb)).hasSize(250);
+    }
+
+    @Test
+    public void testAuditEntriesFollowTheTransaction() {
+        AuditLogger audit = Framework.getService(AuditLogger.class);
+        LogEntry rolledBack = audit.newLogEntry();
+        rolledBack.setCategory("AI");
+        rolledBack.setEventId("rolledBackTest");
+        rolledBack.setEventDate(new Date());
+        aiComponent.addAuditEntry(rolledBack);
+        assertEquals("The entry waits for the commit", 0, aiComponent.getAuditBuffer().size());
+        TransactionHelper.setTransactionRollbackOnly();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        LogEntry committed = audit.newLogEntry();
+        committed.setCategory("AI");
+        committed.setEventId("committedTest");
+        committed.setEventDate(new Date());
+        aiComponent.addAuditEntry(committed);
+        flushAudit();
+
+        AuditQueryBuilder qb = new AuditQueryBuilder();
+        qb.predicate(Predicates.eq(LOG_CATEGORY, "AI")).and(Predicates.eq(LOG_EVENT_ID, "rolledBackTest"));
+        assertThat(auditReader.queryLogs(qb)).isEmpty();
+        qb = new AuditQueryBuilder();
+        qb.predicate(Predicates.eq(LOG_CATEGORY, "AI")).and(Predicates.eq(LOG_EVENT_ID, "committedTest"));
+        assertThat(auditReader.queryLogs(qb)).hasSize(1);
+    }
+
+    @Test
+    public void testBufferedAuditKeepsFailedBatch() throws InterruptedException {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        AuditBuffer buffer = new AuditBuffer(100, 10, 60_000) {
+            @Override
+            protected void write(List<LogEntry> batch) {
+                if (failing.get()) {
+                    throw new NuxeoException("Audit failure");
+                }
+                super.write(batch);
+            }
+        };
+        AuditLogger audit = Framework.getService(AuditLogger.class);
+        try {
+            for (int i = 0; i < 5; i++) {
+                LogEntry entry = audit.newLogEntry();
+                entry.setCategory("AI");
+                entry.setEventId("retriedTest");
+                entry.setEventDate(new Date());
+                buffer.add(entry);
+            }
+            try {
+                buffer.flush();
+                fail("The write failure must be propagated");
+            } catch (NuxeoException e) {
+                // expected
+            }
+            assertEquals("The failed batch is kept", 5, buffer.size());
+
+            failing.set(false);
+            buffer.flush();
+            assertEquals(0, buffer.size());
+        } finally {
+            buffer.close();
+        }
+        // Entries added once the buffer is closed are written directly
+        LogEntry entry = audit.newLogEntry();
+        entry.setCategory("AI");
+        entry.setEventId("retriedTest");
+        entry.setEventDate(new Date());
+        buffer.add(entry);
+        assertEquals(0, buffer.size());
+        txFeature.nextTransaction();
+
+        AuditQueryBuilder qb = new AuditQueryBuilder();
+        qb.predicate(Predicates.eq(LOG_CATEGORY, "AI")).and(Predicates.eq(LOG_EVENT_ID, "retriedTest"));
+        assertThat(auditReader.queryLogs(qb)).hasSize(6);
+    }
+
+    /**
+     * Writes the buffered AI audit entries and waits for them to be stored.
+     */
+    protected void flushAudit() {
+        // Entries are buffered once their transaction is committed
+        txFeature.nextTransaction();
+        aiComponent.getAuditBuffer().flush();
+        txFeature.nextTransaction();
+    }
+
     @Test
     @Deploy("org.nuxeo.elasticsearch.http.readonly")
     @Deploy("org.nuxeo.elasticsearch.audit.test:elasticsearch-audit-index-test-contrib.xml")
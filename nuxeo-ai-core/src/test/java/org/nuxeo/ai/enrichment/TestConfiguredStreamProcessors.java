@@ -31,23 +31,29 @@ import static org.nuxeo.ai.pipes.services.JacksonUtil.toRecord;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.inject.Inject;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.ai.functions.AbstractEnrichmentConsumer;
+import org.nuxeo.ai.functions.AbstractEnrichmentConsumer.EnrichmentConsumerComputation;
 import org.nuxeo.ai.metadata.AIMetadata;
 import org.nuxeo.ai.metadata.LabelSuggestion;
+import org.nuxeo.ai.pipes.streams.FunctionStreamProcessor.FunctionMetrics;
 import org.nuxeo.ai.pipes.types.BlobTextFromDocument;
 import org.nuxeo.ai.sdk.objects.PropertyType;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.model.Property;
 import org.nuxeo.ecm.core.blob.BlobManager;
 import org.nuxeo.ecm.core.blob.BlobMetaImpl;
@@ -246,4 +252,31 @@ public class TestConfiguredStreamProcessors {
         waitForNoLag(manager, SUGGESTION, SUGGESTION_GROUP, Duration.ofSeconds(5));
         assertEquals(2L, call.getValue());
     }
+
+    @Test
+    public void testBatchFailureConsumesRecordsOneByOne() {
+        List<String> consumed = new ArrayList<>();
+        AbstractEnrichmentConsumer consumer = new AbstractEnrichmentConsumer() {
+            @Override
+            public void accept(List<EnrichmentMetadata> batch) {
+                throw new NuxeoException("batch failure");
+            }
+
+            @Override
+            public void accept(EnrichmentMetadata metadata) {
+                if ("bad".equals(metadata.context.documentRef)) {
+                    throw new NuxeoException("bad document");
+                }
+                consumed.add(metadata.context.documentRef);
+            }
+        };
+        EnrichmentConsumerComputation computation = new EnrichmentConsumerComputation(0, "ai/testBatchFailure",
+                new FunctionMetrics("ai/testBatchFailure"), consumer);
+        List<Record> records = Stream.of("doc1", "bad", "doc2")
+                                     .map(id -> toRecord(id, new EnrichmentMetadata.Builder("m1", "stest",
+                                             Collections.emptySet(), "test", id, Collections.emptySet()).build()))
+                                     .collect(Collectors.toList());
+        computation.batchFailure(null, "in", records);
+        assertEquals(Arrays.asList("doc1", "doc2"), consumed);
+    }
 }
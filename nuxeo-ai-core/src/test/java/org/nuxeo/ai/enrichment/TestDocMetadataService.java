@@ -21,6 +21,8 @@ package org.nuxeo.ai.enrichment;
 import static java.util.Collections.emptySet;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_INPUT_DOCPROP_PROPERTY;
@@ -35,6 +37,7 @@ import static org.nuxeo.ai.AIConstants.SUGGESTION_SUGGESTIONS;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -45,6 +48,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.ai.auto.AutoService;
+import org.nuxeo.ai.functions.StoreLabelsAsTags;
 import org.nuxeo.ai.metadata.AIMetadata;
 import org.nuxeo.ai.metadata.LabelSuggestion;
 import org.nuxeo.ai.metadata.SuggestionMetadataWrapper;
@@ -58,7 +62,9 @@ import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.model.Property;
 import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.platform.tag.TagService;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
@@ -96,6 +102,10 @@ public class TestDocMetadataService {
     protected BlobManager blobManager;
 
     public static EnrichmentMetadata setupTestEnrichmentMetadata(DocumentModel testDoc) {
+        return setupTestEnrichmentMetadata(testDoc, "bob");
+    }
+
+    public static EnrichmentMetadata setupTestEnrichmentMetadata(DocumentModel testDoc, String creator) {
         List<EnrichmentMetadata.Label> labels = Arrays.asList(new AIMetadata.Label("girl", 0.5f, 0L),
                 new AIMetadata.Label("boy", 0.4f, 0L));
         List<EnrichmentMetadata.Label> labelz = Collections.singletonList(new AIMetadata.Label("cat", 0.9f, 0L));
@@ -109,7 +119,7 @@ public class TestDocMetadataService {
 
         return new EnrichmentMetadata.Builder("m1", "stest", emptySet(), testDoc.getRepositoryName(), testDoc.getId(),
                 emptySet()).withLabels(Arrays.asList(suggestion, suggestion2, suggestionMultiVal))
-                           .withCreator("bob")
+                           .withCreator(creator)
                            .build();
     }
 
@@ -176,6 +186,13 @@ public class TestDocMetadataService {
 
         //Lets save the same data again so we can check we don't duplicate it.
         testDoc = docMetadataService.saveEnrichment(session, suggestionMetadata);
+        assertFalse("The same enrichment must not change the document", testDoc.isDirty());
+        // Only the creation date of a new run differs
+        testDoc = docMetadataService.saveEnrichment(session, setupTestEnrichmentMetadata(testDoc));
+        assertFalse("A new run with the same result must not change the document", testDoc.isDirty());
+        // The suggestions are the same but the normalized metadata differs
+        testDoc = docMetadataService.saveEnrichment(session, setupTestEnrichmentMetadata(testDoc, "alice"));
+        assertTrue("Another creator must change the document", testDoc.isDirty());
         session.saveDocument(testDoc);
         txFeature.nextTransaction();
 
@@ -201,6 +218,13 @@ public class TestDocMetadataService {
                                .mapToLong(Collection::size)
                                .sum());
         assertEquals(7, wrapper.getSuggestionsByModel("stest").stream().mapToInt(l -> l.getValues().size()).sum());
+        assertTrue(wrapper.getSuggestionsByProperty("dc:unknown").isEmpty());
+
+        // The auto state index follows the updates
+        assertFalse(wrapper.isAutoFilled("dc:title"));
+        wrapper.addAutoFilled("dc:title", "stest");
+        assertTrue(wrapper.isAutoFilled("dc:title"));
+        assertFalse(wrapper.isAutoCorrected("dc:title"));
 
         testDoc = docMetadataService.removeSuggestionsForTargetProperty(testDoc, "dc:title");
         wrapper = new SuggestionMetadataWrapper(testDoc);
@@ -236,6 +260,72 @@ public class TestDocMetadataService {
         assertTrue("No longer any suggestions.", suggested.isEmpty());
     }
 
+    @Test
+    public void testSavesBatchedSuggestions() {
+        DocumentModel testDoc = session.createDocumentModel("/", "My Batched Doc", "File");
+        testDoc = session.createDocument(testDoc);
+        txFeature.nextTransaction();
+
+        EnrichmentMetadata first = setupTestEnrichmentMetadata(testDoc);
+        EnrichmentMetadata second = new EnrichmentMetadata.Builder("m1", "stest2", emptySet(),
+                testDoc.getRepositoryName(), testDoc.getId(), emptySet()).withLabels(first.getLabels())
+                                                                         .withCreator("bob")
+                                                                         .build();
+        testDoc = docMetadataService.saveEnrichment(session, Arrays.asList(first, second, first));
+        session.saveDocument(testDoc);
+        txFeature.nextTransaction();
+
+        SuggestionMetadataWrapper wrapper = new SuggestionMetadataWrapper(session.getDocument(testDoc.getRef()));
+        assertEquals(2, wrapper.getModels().size());
+        assertEquals(2, wrapper.getSuggestionsByProperty("dc:title").size());
+    }
+
+    @Test
+    public void testStoresLabelsAsTags() {
+        DocumentModel testDoc = session.createDocumentModel("/", "My Tagged Doc", "File");
+        testDoc = session.createDocument(testDoc);
+        txFeature.nextTransaction();
+
+        EnrichmentMetadata metadata = setupTestEnrichmentMetadata(testDoc);
+        // The TagService stores labels in lower case
+        EnrichmentMetadata mixedCase = new EnrichmentMetadata.Builder("m1", "stest", emptySet(),
+                testDoc.getRepositoryName(), testDoc.getId(), emptySet()).withLabels(Collections.singletonList(
+                new LabelSuggestion("dc:title", Collections.singletonList(new AIMetadata.Label("Person", 0.8f, 0L)))))
+                                                                          .build();
+        StoreLabelsAsTags storeLabelsAsTags = new StoreLabelsAsTags();
+        storeLabelsAsTags.accept(Arrays.asList(metadata, metadata, mixedCase));
+        txFeature.nextTransaction();
+
+        TagService tagService = Framework.getService(TagService.class);
+        assertEquals(8, tagService.getTags(session, testDoc.getId()).size());
+        assertTrue(tagService.getTags(session, testDoc.getId()).contains("person"));
+        String changeToken = session.getDocument(testDoc.getRef()).getChangeToken();
+
+        // Labels already stored as tags don't write the document again, whatever their case
+        storeLabelsAsTags.accept(Arrays.asList(metadata, mixedCase));
+        txFeature.nextTransaction();
+        assertEquals(8, tagService.getTags(session, testDoc.getId()).size());
+        assertEquals(changeToken, session.getDocument(testDoc.getRef()).getChangeToken());
+    }
+
+    @Test
+    public void testSameResultWithNewRawKey() {
+        DocumentModel testDoc = session.createDocumentModel("/", "My Raw Doc", "File");
+        EnrichmentMetadata metadata = enrichTestDoc(testDoc);
+        DocumentModel doc = session.getDocument(testDoc.getRef());
+
+        // The provider stores the same raw output again under a new transient key
+        BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument(doc.getId(), doc.getRepositoryName(),
+                doc.getParentRef().toString(), doc.getType(), doc.getFacets());
+        blobTextFromDoc.addProperty(TEST_PROPERTY, SOME_TEXT);
+        List<EnrichmentMetadata> results = new ArrayList<>(
+                aiComponent.getEnrichmentProvider(SERVICE_NAME).enrich(blobTextFromDoc));
+        assertNotEquals(metadata.getRawKey(), results.get(0).getRawKey());
+
+        doc = docMetadataService.saveEnrichment(session, results);
+        assertFalse("The same result with a new raw key must not change the document", doc.isDirty());
+    }
+
     @Test
     public void testEnrichedFacetRemoval() {
         // Confirm our test document is enriched
@@ -21,6 +21,8 @@ package org.nuxeo.ai.enrichment;
 import static com.tngtech.jgiven.impl.util.AssertionUtil.assertNotNull;
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.nuxeo.ai.enrichment.EnrichmentTestFeature.FILE_CONTENT;
 import static org.nuxeo.ai.enrichment.EnrichmentTestFeature.blobTestImage;
@@ -29,6 +31,8 @@ import static org.nuxeo.ai.pipes.services.JacksonUtil.toRecord;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -41,12 +45,16 @@ import org.nuxeo.ai.metadata.AIMetadata;
 import org.nuxeo.ai.metadata.LabelSuggestion;
 import org.nuxeo.ai.metadata.TagSuggestion;
 import org.nuxeo.ai.pipes.types.BlobTextFromDocument;
+import org.nuxeo.ai.services.AIComponent;
 import org.nuxeo.ai.sdk.objects.PropertyType;
 import org.nuxeo.ecm.core.blob.BlobManager;
 import org.nuxeo.ecm.core.blob.BlobMetaImpl;
 import org.nuxeo.ecm.core.blob.ManagedBlob;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
 import org.nuxeo.lib.stream.computation.Record;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 
@@ -59,6 +67,9 @@ public class TestEnrichmentMetaData {
     @Inject
     protected BlobManager blobManager;
 
+    @Inject
+    protected AIComponent aiComponent;
+
     @Test
     public void testBuilder() {
         EnrichmentMetadata metadata = new EnrichmentMetadata.Builder(Instant.now(), "m1", "test",
@@ -132,4 +143,71 @@ public class TestEnrichmentMetaData {
                         blob.getLength()));
         assertEquals("testin47XX_58YY", EnrichmentUtils.makeKeyUsingBlobDigests(blobTextFromDoc, "testin"));
     }
+
+    @Test
+    public void testPropertyCacheKeys() {
+        BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument("doc1", repositoryName, null, "File", null);
+        assertNull(EnrichmentUtils.makeKeyUsingProperties(blobTextFromDoc, "testin"));
+
+        // "Aa" and "BB" have the same String.hashCode()
+        blobTextFromDoc.addProperty("dc:title", "Aa");
+        String key = EnrichmentUtils.makeKeyUsingProperties(blobTextFromDoc, "testin");
+        assertEquals("testin".length() + 32, key.length());
+        assertEquals(key, EnrichmentUtils.makeKeyUsingProperties(blobTextFromDoc, "testin"));
+        BlobTextFromDocument other = new BlobTextFromDocument("doc2", repositoryName, null, "File", null);
+        other.addProperty("dc:title", "BB");
+        assertNotEquals(key, EnrichmentUtils.makeKeyUsingProperties(other, "testin"));
+        other.addProperty("dc:title", "Aa");
+        assertEquals("The key only depends on the content", key,
+                EnrichmentUtils.makeKeyUsingProperties(other, "testin"));
+
+        int numKeys = 2_000_000;
+        long[] hashes = new long[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            BlobTextFromDocument synthetic = new BlobTextFromDocument();
+            synthetic.addProperty("dc:title", "title" + i);
+            // The first 64 bits are enough to prove the 128-bit hashes are distinct
+            hashes[i] = Long.parseUnsignedLong(synthetic.getContentHash().substring(0, 16), 16);
+        }
+        Arrays.sort(hashes);
+        for (int i = 1; i < numKeys; i++) {
+            assertNotEquals("Collision in synthetic keys", hashes[i - 1], hashes[i]);
+        }
+    }
+
+    @Test
+    public void testNearCache() {
+        BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument("doc1", repositoryName, null, "File", null);
+        EnrichmentMetadata metadata = new EnrichmentMetadata.Builder("m1", "test", blobTextFromDoc).withCreator("bob")
+                                                                                                 .build();
+        EnrichmentNearCache nearCache = aiComponent.getEnrichmentNearCache();
+        assertNotNull(nearCache);
+        long bytes = nearCache.bytesResident.get();
+        EnrichmentUtils.cachePut("nearCacheKey", singletonList(metadata), 60);
+        assertTrue(nearCache.bytesResident.get() > bytes);
+
+        // Served by the near cache without reading the KeyValueStore
+        KeyValueStore kvStore = Framework.getService(KeyValueService.class)
+                                         .getKeyValueStore(EnrichmentUtils.ENRICHMENT_CACHE_KV);
+        kvStore.put("nearCacheKey", (byte[]) null);
+        Collection<? extends AIMetadata> cached = EnrichmentUtils.cacheGet("nearCacheKey");
+        assertEquals(1, cached.size());
+        assertEquals("bob", cached.iterator().next().getCreator());
+
+        // The byte budget evicts entries
+        EnrichmentNearCache small = new EnrichmentNearCache(300, 60);
+        for (int i = 0; i < 10; i++) {
+            small.put("k" + i, singletonList(metadata), 60);
+        }
+        assertTrue(small.bytesResident.get() <= 300);
+        assertTrue(small.evictions.get() > 0);
+        small.invalidateAll();
+        assertEquals(0, small.bytesResident.get());
+
+        // An entry expires with the provider time to live when it is shorter than the near cache one
+        small.put("expired", singletonList(metadata), 60, 0);
+        assertNull(small.get("expired"));
+        small.put("live", singletonList(metadata), 60, 120);
+        assertNotNull(small.get("live"));
+    }
 }
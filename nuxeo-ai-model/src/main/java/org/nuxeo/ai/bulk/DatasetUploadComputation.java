@@ -77,6 +77,7 @@ public class DatasetUploadComputation extends AbstractComputation {
 
                 // TODO: Attach corpus to corpora
                 if (client.uploadedDataset(document) == null) {
+                    // the files already uploaded are skipped by the next upload of this document
                     log.warn("Document wasn't uploaded {}", document.getId());
                 }
             } else {
@@ -23,12 +23,12 @@ import static org.nuxeo.ai.AIConstants.EXPORT_ACTION_NAME;
 import static org.nuxeo.ecm.core.bulk.message.BulkStatus.State.COMPLETED;
 
 import java.time.Instant;
-import java.util.Collections;
 import java.util.Date;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.message.Message;
 import org.nuxeo.ai.cloud.CloudClient;
+import org.nuxeo.ai.services.AIComponent;
 import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.bulk.BulkCodecs;
@@ -80,9 +80,12 @@ public class ExportDoneComputation extends AbstractComputation {
                 if (endTime != null) {
                     long endMs = endTime.toEpochMilli();
                     entry.setEventDate(new Date(endMs));
+                } else {
+                    // The entry is written later on
+                    entry.setEventDate(new Date());
                 }
 
-                logger.addLogEntries(Collections.singletonList(entry));
+                Framework.getService(AIComponent.class).addAuditEntry(entry);
             }
 
             CloudClient cc = Framework.getService(CloudClient.class);
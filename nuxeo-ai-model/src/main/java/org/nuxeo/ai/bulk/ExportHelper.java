@@ -19,6 +19,7 @@
  */
 package org.nuxeo.ai.bulk;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.CATEGORY_TYPE;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.IMAGE_TYPE;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.NAME_PROP;
@@ -46,6 +47,8 @@ import org.nuxeo.runtime.codec.CodecService;
 import org.nuxeo.runtime.kv.KeyValueService;
 import org.nuxeo.runtime.kv.KeyValueStore;
 import org.nuxeo.runtime.transaction.TransactionHelper;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
 public abstract class ExportHelper {
 
@@ -53,6 +56,10 @@ public abstract class ExportHelper {
 
     private static final int TIMEOUT = 3600 * 24;
 
+    public static final int SPLIT_SEED = 42;
+
+    private static final HashFunction SPLIT_HASH = Hashing.murmur3_32(SPLIT_SEED);
+
     /**
      * Helper for getting KVS
      *
@@ -73,6 +80,14 @@ public abstract class ExportHelper {
         return cs.getCodec(DEFAULT_CODEC, clazz);
     }
 
+    /**
+     * Tells if a document goes to the training set, split being the percentage of training documents. The decision
+     * only depends on the id, using a seeded hash, so it is the same for every export and needs no state.
+     */
+    public static boolean isTraining(String id, int split) {
+        return Math.floorMod(SPLIT_HASH.hashString(id, UTF_8).asInt(), 100) < split;
+    }
+
     /**
      * Runs a method with Nuxeo Tx
      */
@@ -19,8 +19,6 @@
  */
 package org.nuxeo.ai.bulk;
 
-import static java.util.Collections.shuffle;
-import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toMap;
 import static org.nuxeo.ai.AIConstants.ENRICHMENT_FACET;
 import static org.nuxeo.ai.AIConstants.EXPORT_SPLIT_PARAM;
@@ -32,6 +30,7 @@ import static org.nuxeo.ai.adapters.DatasetExport.DATASET_EXPORT_MODEL_START_DAT
 import static org.nuxeo.ai.adapters.DatasetExport.DATASET_EXPORT_TYPE;
 import static org.nuxeo.ai.bulk.ExportHelper.getAvroCodec;
 import static org.nuxeo.ai.bulk.ExportHelper.getKVS;
+import static org.nuxeo.ai.bulk.ExportHelper.isTraining;
 import static org.nuxeo.ai.model.export.CorpusDelta.CORPORA_ID_PARAM;
 import static org.nuxeo.ai.model.export.DatasetExportServiceImpl.INPUT_PARAMETERS;
 import static org.nuxeo.ai.model.export.DatasetExportServiceImpl.MODEL_PARAMETERS;
@@ -41,11 +40,11 @@ import static org.nuxeo.ai.pipes.functions.PropertyUtils.AI_CONVERSION_STRICT_MO
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.IMAGE_TYPE;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.getPropertyValue;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.MAPPER;
-import static org.nuxeo.ecm.core.query.sql.NXQL.escapeString;
 import static org.nuxeo.ecm.core.schema.FacetNames.HIDDEN_IN_NAVIGATION;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -54,7 +53,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -66,6 +64,7 @@ import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.adapters.DatasetExport;
 import org.nuxeo.ai.cloud.CloudClient;
 import org.nuxeo.ai.metadata.SuggestionMetadataWrapper;
+import org.nuxeo.ai.model.analyzis.DatasetStatsAggregator;
 import org.nuxeo.ai.model.analyzis.DatasetStatsService;
 import org.nuxeo.ai.model.export.DatasetExportService;
 import org.nuxeo.ai.pipes.functions.PropertyUtils;
@@ -92,17 +91,16 @@ import org.nuxeo.runtime.kv.KeyValueStore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 /**
- * Splits document into batches and randomly splits it into 2 groups for training and validation.
+ * Splits document into batches and splits it into 2 groups for training and validation, using a seeded hash of the
+ * document id so the split is deterministic.
  */
 public class ExportInitComputation extends AbstractBulkComputation {
 
-    public static final String UUID_QUERY_INIT = "SELECT * FROM Document WHERE ecm:uuid IN ";
-
     public static final long TIMEOUT_48_HOURS_IN_SEC = 48 * 60 * 60;
 
     public static final String COMMA_DELIMITER = ",";
 
-    private static final String TIMEOUT_KV_STORE = "nuxeo.ai.timeout.kv.store";
+    public static final String TIMEOUT_KV_STORE = "nuxeo.ai.timeout.kv.store";
 
     public static final int DEFAULT_SPLIT = 75;
 
@@ -162,9 +160,8 @@ public class ExportInitComputation extends AbstractBulkComputation {
             log.warn("No suitable documents found in batch {}; failed size {}", batchId, failed);
         }
 
-        String nxql = buildQueryFrom(docs);
         String original = (String) properties.get(QUERY_PARAM);
-        Blob stats = getStatisticsBlob(session, nxql, inputs, outputs);
+        Blob stats = getStatisticsBlob(docs, inputs, outputs);
         createDataset(session, original, modelParams, inputs, outputs, stats, batchId, split);
         bindCorporaToModel(session, client, modelParams);
     }
@@ -181,12 +178,8 @@ public class ExportInitComputation extends AbstractBulkComputation {
     @Override
     public void endBucket(ComputationContext context, BulkStatus ignored) {
         Codec<ExportRecord> codec = getAvroCodec(ExportRecord.class);
-        Random random = new Random(42);
-        shuffle(suitable);
+        // the training split is already decided per document, see createRecordFromDoc
         for (ExportRecord record : suitable) {
-            if (random.nextInt(100) < split) {
-                record.setTraining(true);
-            }
             context.produceRecord(OUTPUT_1, record.getId(), codec.encode(record));
         }
 
@@ -321,11 +314,10 @@ public class ExportInitComputation extends AbstractBulkComputation {
     }
 
     @Nonnull
-    protected Blob getStatisticsBlob(CoreSession session, String nxql, Set<PropertyType> input,
-            Set<PropertyType> output) {
+    protected Blob getStatisticsBlob(DocumentModelList docs, Set<PropertyType> input, Set<PropertyType> output) {
         Blob stats;
         try {
-            Collection<Statistic> statistics = buildStatistics(session, nxql, input, output);
+            Collection<Statistic> statistics = buildStatistics(docs, input, output);
             stats = Blobs.createJSONBlobFromValue(statistics);
         } catch (IOException e) {
             throw new NuxeoException("Unable to process stats blob", e);
@@ -333,12 +325,6 @@ public class ExportInitComputation extends AbstractBulkComputation {
         return stats;
     }
 
-    protected String buildQueryFrom(DocumentModelList docs) {
-        return UUID_QUERY_INIT + " (" + docs.stream()
-                                            .map(doc -> escapeString(doc.getId()))
-                                            .collect(joining(COMMA_DELIMITER)) + ")";
-    }
-
     protected ExportRecord createRecordFromDoc(String id, Set<PropertyType> inputs, Set<PropertyType> outputs,
             DocumentModel doc) {
         Map<String, String> nameTypePair = Stream.concat(inputs.stream(), outputs.stream())
@@ -389,7 +375,9 @@ public class ExportInitComputation extends AbstractBulkComputation {
 
         if (subDoc != null) {
             try {
-                return ExportRecord.of(id, command.getId(), MAPPER.writeValueAsBytes(subDoc));
+                ExportRecord record = ExportRecord.of(id, command.getId(), MAPPER.writeValueAsBytes(subDoc));
+                record.setTraining(isTraining(doc.getId(), split));
+                return record;
             } catch (JsonProcessingException e) {
                 throw new NuxeoException(e);
             }
@@ -399,10 +387,17 @@ public class ExportInitComputation extends AbstractBulkComputation {
         }
     }
 
-    protected Collection<Statistic> buildStatistics(CoreSession session, String query, Set<PropertyType> input,
+    /**
+     * Computes the statistics of the batch from the loaded documents, they match the ones
+     * {@link DatasetStatsService#getStatistics} gets from Elasticsearch for the same documents.
+     */
+    protected Collection<Statistic> buildStatistics(DocumentModelList docs, Set<PropertyType> input,
             Set<PropertyType> output) {
-        DatasetStatsService dss = Framework.getService(DatasetStatsService.class);
-        return dss.getStatistics(session, query, input, output);
+        List<PropertyType> features = new ArrayList<>(input);
+        features.addAll(output);
+        DatasetStatsAggregator aggregator = new DatasetStatsAggregator(features);
+        docs.forEach(aggregator::accept);
+        return aggregator.getStatistics();
     }
 
     /**
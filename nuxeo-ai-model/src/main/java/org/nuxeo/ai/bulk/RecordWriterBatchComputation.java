@@ -19,6 +19,7 @@
 package org.nuxeo.ai.bulk;
 
 import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.partitioningBy;
 import static java.util.stream.Collectors.toList;
 import static org.nuxeo.ai.bulk.ExportHelper.getAvroCodec;
 
@@ -83,19 +84,17 @@ public class RecordWriterBatchComputation extends AbstractBatchComputation {
 
     private long write(ComputationContext context, Codec<ExportRecord> codec, List<ExportRecord> recs)
             throws IOException {
+        // A single call per writer, so the records are written with one output and without per record overhead
+        Map<Boolean, List<ExportRecord>> bySet = recs.stream().collect(partitioningBy(ExportRecord::isTraining));
         long errored = 0;
-        for (ExportRecord rec : recs) {
-            RecordWriter writer;
-            if (rec.isTraining()) {
-                writer = getTrainingWriter();
-            } else {
-                writer = getValidationWriter();
-            }
+        if (!bySet.get(true).isEmpty()) {
+            errored += getTrainingWriter().write(bySet.get(true));
+        }
+        if (!bySet.get(false).isEmpty()) {
+            errored += getValidationWriter().write(bySet.get(false));
+        }
 
-            if (rec.isFailed() || !writer.write(rec)) {
-                rec.setFailed(true);
-                errored += 1;
-            }
+        for (ExportRecord rec : recs) {
             exportedIds.add(rec.getId());
             byte[] encoded = codec.encode(rec);
             context.produceRecord(OUTPUT_1, rec.getCommandId(), encoded);
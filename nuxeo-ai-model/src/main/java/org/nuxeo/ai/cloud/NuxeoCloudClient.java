@@ -32,6 +32,9 @@ import static org.nuxeo.ai.adapters.DatasetExport.DATASET_EXPORT_QUERY;
 import static org.nuxeo.ai.adapters.DatasetExport.DATASET_EXPORT_SPLIT;
 import static org.nuxeo.ai.adapters.DatasetExport.DATASET_EXPORT_STATS;
 import static org.nuxeo.ai.adapters.DatasetExport.DATASET_EXPORT_TRAINING_DATA;
+import static org.nuxeo.ai.bulk.ExportHelper.getKVS;
+import static org.nuxeo.ai.bulk.ExportInitComputation.TIMEOUT_48_HOURS_IN_SEC;
+import static org.nuxeo.ai.bulk.ExportInitComputation.TIMEOUT_KV_STORE;
 import static org.nuxeo.ai.sdk.rest.Common.CORPORA_ID_PARAM;
 import static org.nuxeo.ai.sdk.rest.Common.EXPORT_ID_PARAM;
 import static org.nuxeo.ai.sdk.rest.Common.MODEL_ID_PARAM;
@@ -45,19 +48,26 @@ import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
@@ -82,6 +92,7 @@ import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.impl.blob.JSONBlob;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueStore;
 import org.nuxeo.runtime.model.Component;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.DefaultComponent;
@@ -101,6 +112,27 @@ public class NuxeoCloudClient extends DefaultComponent implements CloudClient {
 
     private static final int CHUNK_100_MB = 1024 * 1024 * 100;
 
+    private static final String[] DATASET_FILES = { "training", "evaluation", "statistics" };
+
+    private static final String UPLOAD_MANIFEST_PREFIX = "ai_upload_";
+
+    private static final long UPLOAD_RETRY_DELAY_MS = 1000;
+
+    /**
+     * Number of dataset files uploaded concurrently.
+     */
+    public static final String UPLOAD_THREADS = "nuxeo.ai.insight.upload.threads";
+
+    /**
+     * Number of attempts to upload a dataset file before giving up.
+     */
+    public static final String UPLOAD_ATTEMPTS = "nuxeo.ai.insight.upload.attempts";
+
+    /**
+     * Lifetime of an upload batch on the server, an uploaded file isn't reused after it.
+     */
+    private static final long UPLOAD_BATCH_TTL_SEC = 60 * 60;
+
     private static final Logger log = LogManager.getLogger(NuxeoCloudClient.class);
 
     public static final String XP_CONFIG = "config";
@@ -113,6 +145,8 @@ public class NuxeoCloudClient extends DefaultComponent implements CloudClient {
 
     protected Cache<String, Optional<InsightClient>> cachedClients;
 
+    protected ExecutorService uploader;
+
     @Override
     public void start(ComponentContext context) {
         super.start(context);
@@ -131,6 +165,18 @@ public class NuxeoCloudClient extends DefaultComponent implements CloudClient {
         }
 
         cachedClients = builder.build();
+        int threads = Integer.parseInt(Framework.getProperty(UPLOAD_THREADS, String.valueOf(DATASET_FILES.length)));
+        uploader = Executors.newFixedThreadPool(Math.max(1, threads),
+                new BasicThreadFactory.Builder().namingPattern("ai-dataset-upload-%d").daemon(true).build());
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+        super.stop(context);
+        if (uploader != null) {
+            uploader.shutdownNow();
+            uploader = null;
+        }
     }
 
     @Override
@@ -292,19 +338,48 @@ public class NuxeoCloudClient extends DefaultComponent implements CloudClient {
         }
     }
 
-    protected boolean createBatch(BatchUpload batchUpload, String name, String index, Blob blob) {
+    /**
+     * Uploads the blob in its own batch on the uploader threads.
+     *
+     * @param uploaded the batch id of a previous upload of this blob, if any
+     * @return the batch id, null if there is no blob
+     */
+    protected Future<String> upload(InsightClient client, String name, String index, Blob blob, String uploaded) {
         if (blob == null) {
-            return false;
+            return CompletableFuture.completedFuture(null);
+        } else if (uploaded != null) {
+            log.info("Resuming upload, {} Dataset was already uploaded in batch {}", name, uploaded);
+            return CompletableFuture.completedFuture(uploaded);
         }
 
         FileBlob fileBlob = new FileBlob(blob.getFile(), blob.getDigest(), TFRECORD_MIME_TYPE);
+        return uploader.submit(() -> upload(client, name, index, fileBlob));
+    }
 
-        // Obliged to use the api in this way (and not in fluent) cause there is an issue in the framework
-        // test that truncates the batch id after a first call
-        log.info("Uploading {} Dataset of size {} MB", name, fileBlob.getFile().length() / (1024 * 1024));
-        batchUpload.upload(index, fileBlob);
-
-        return true;
+    protected String upload(InsightClient client, String name, String index, FileBlob fileBlob)
+            throws InterruptedException {
+        int attempts = Integer.parseInt(Framework.getProperty(UPLOAD_ATTEMPTS, "3"));
+        BatchUpload batchUpload = null;
+        String batchId = null;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (batchUpload == null) {
+                    batchUpload = client.getBatchUpload(CHUNK_100_MB);
+                    // Obliged to use the api in this way (and not in fluent) cause there is an issue in the framework
+                    // test that truncates the batch id after a first call
+                    batchId = batchUpload.getBatchId();
+                }
+                log.info("Uploading {} Dataset of size {} MB", name, fileBlob.getFile().length() / (1024 * 1024));
+                batchUpload.upload(index, fileBlob);
+                return batchId;
+            } catch (NuxeoClientException e) {
+                if (attempt >= attempts) {
+                    throw e;
+                }
+                log.warn("Failed to upload {} Dataset, attempt {} of {}", name, attempt, attempts, e);
+                Thread.sleep(UPLOAD_RETRY_DELAY_MS * attempt);
+            }
+        }
     }
 
     @Override
@@ -329,24 +404,43 @@ public class NuxeoCloudClient extends DefaultComponent implements CloudClient {
 
             try {
                 DateTime start = DateTime.now();
-                BatchUpload batchUpload = client.getBatchUpload(CHUNK_100_MB);
-
-                String batch1 = batchUpload.getBatchId();
-                batch1 = createBatch(batchUpload, "training", "0", trainingData) ? batch1 : null;
-
-                batchUpload = client.getBatchUpload(CHUNK_100_MB);
-                String batch2 = batchUpload.getBatchId();
-                batch2 = createBatch(batchUpload, "evaluation", "1", evalData) ? batch2 : null;
-
-                batchUpload = client.getBatchUpload(CHUNK_100_MB);
-                String batch3 = batchUpload.getBatchId();
-                batch3 = createBatch(batchUpload, "statistics", "2", statsData) ? batch3 : null;
+                // The batch of each uploaded file is kept so an interrupted upload resumes with the missing files
+                KeyValueStore manifest = getKVS();
+                Blob[] blobs = { trainingData, evalData, statsData };
+                String[] keys = new String[blobs.length];
+                List<Future<String>> uploads = new ArrayList<>(blobs.length);
+                for (int i = 0; i < blobs.length; i++) {
+                    keys[i] = blobs[i] == null ? null : getManifestKey(dataset, i, blobs[i]);
+                    String uploaded = keys[i] == null ? null : manifest.getString(keys[i]);
+                    uploads.add(upload(client, DATASET_FILES[i], String.valueOf(i), blobs[i], uploaded));
+                }
+
+                String[] batches = new String[blobs.length];
+                NuxeoClientException failure = null;
+                for (int i = 0; i < blobs.length; i++) {
+                    try {
+                        batches[i] = await(uploads.get(i));
+                        if (keys[i] != null) {
+                            manifest.put(keys[i], batches[i], getManifestTTL());
+                        }
+                    } catch (NuxeoClientException e) {
+                        failure = failure == null ? e : failure;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
 
                 DateTime end = DateTime.now();
 
-                AICorpus corpus = createCorpus(dataset, batch1, batch2, batch3, start, end);
-                String corporaId = (String) dataset.getPropertyValue(DATASET_EXPORT_CORPORA_ID);
-                return uploadDataset(session, corpus, corporaId);
+                // The batches are consumed by the attach, or may be stale if it fails: they are never reused
+                try {
+                    AICorpus corpus = createCorpus(dataset, batches[0], batches[1], batches[2], start, end);
+                    String corporaId = (String) dataset.getPropertyValue(DATASET_EXPORT_CORPORA_ID);
+                    return uploadDataset(session, corpus, corporaId);
+                } finally {
+                    Arrays.stream(keys).filter(Objects::nonNull).forEach(key -> manifest.put(key, (String) null));
+                }
             } catch (NuxeoClientException e) {
                 log.error("User {} failed to upload dataset. ", session.getPrincipal().getActingUser(), e);
             }
@@ -354,6 +448,30 @@ public class NuxeoCloudClient extends DefaultComponent implements CloudClient {
         return null;
     }
 
+    protected String await(Future<String> upload) {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoClientException("Interrupted while uploading a dataset", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NuxeoClientException) {
+                throw (NuxeoClientException) e.getCause();
+            }
+            throw new NuxeoClientException("Unable to upload a dataset", e.getCause());
+        }
+    }
+
+    protected String getManifestKey(DocumentModel dataset, int index, Blob blob) {
+        return UPLOAD_MANIFEST_PREFIX + dataset.getId() + "_" + index + "_" + blob.getDigest();
+    }
+
+    protected long getManifestTTL() {
+        long timeout = Long.parseLong(
+                Framework.getProperty(TIMEOUT_KV_STORE, String.valueOf(TIMEOUT_48_HOURS_IN_SEC)));
+        return Math.min(timeout, UPLOAD_BATCH_TTL_SEC);
+    }
+
     @Nullable
     protected String uploadDataset(CoreSession session, AICorpus corpus, String corporaId) {
         InsightClient client = getClient(session).orElse(null);
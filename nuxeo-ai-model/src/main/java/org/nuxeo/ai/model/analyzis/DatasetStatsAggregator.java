@@ -0,0 +1,240 @@
+/*
+ * (C) Copyright 2022 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Nuxeo
+ */
+package org.nuxeo.ai.model.analyzis;
+
+import static org.nuxeo.ai.model.export.DatasetExportServiceImpl.DEFAULT_NUM_TERMS;
+import static org.nuxeo.ai.model.export.DatasetExportServiceImpl.STATS_COUNT;
+import static org.nuxeo.ai.model.export.DatasetExportServiceImpl.STATS_TOTAL;
+import static org.nuxeo.ai.pipes.functions.PropertyUtils.CATEGORY_TYPE;
+import static org.nuxeo.ai.pipes.functions.PropertyUtils.IMAGE_TYPE;
+import static org.nuxeo.ai.pipes.functions.PropertyUtils.TEXT_TYPE;
+import static org.nuxeo.elasticsearch.ElasticSearchConstants.AGG_CARDINALITY;
+import static org.nuxeo.elasticsearch.ElasticSearchConstants.AGG_MISSING;
+import static org.nuxeo.elasticsearch.ElasticSearchConstants.AGG_TYPE_TERMS;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.nuxeo.ai.bulk.ExportHelper;
+import org.nuxeo.ai.pipes.functions.PropertyUtils;
+import org.nuxeo.ai.sdk.objects.Bucket;
+import org.nuxeo.ai.sdk.objects.PropertyType;
+import org.nuxeo.ai.sdk.objects.Statistic;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.TypeConstants;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Computes the dataset statistics of {@link DatasetStatsService#getStatistics} from the documents themselves, without
+ * querying Elasticsearch.
+ * <p>
+ * Documents are added one by one and aggregators can be merged, the statistics have the same ids, fields, types and
+ * values as the Elasticsearch aggregates: missing counts, the top terms ordered by count then key, and the number of
+ * distinct terms. Distinct terms are kept in a set, which is exact like the Elasticsearch cardinality below its
+ * precision threshold, so an aggregator is meant for a bounded number of documents such as an export batch.
+ */
+public class DatasetStatsAggregator {
+
+    protected static final DateTimeFormatter DATE_TERM_FORMAT = DateTimeFormatter.ofPattern(
+            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    protected final int maxTerms = Integer.parseInt(DEFAULT_NUM_TERMS);
+
+    protected final Map<String, FeatureStats> features = new LinkedHashMap<>();
+
+    protected long total;
+
+    protected long count;
+
+    public DatasetStatsAggregator(Collection<PropertyType> features) {
+        SchemaManager schemaManager = Framework.getService(SchemaManager.class);
+        for (PropertyType feature : features) {
+            PropertyType prop = ExportHelper.addTypeIfNull(feature);
+            Field field = schemaManager.getField(prop.getName());
+            this.features.putIfAbsent(prop.getName(), new FeatureStats(prop, field));
+        }
+    }
+
+    /**
+     * Adds the document values to the statistics.
+     */
+    public void accept(DocumentModel doc) {
+        total++;
+        boolean allContent = true;
+        for (FeatureStats stats : features.values()) {
+            Serializable value = PropertyUtils.getPropertyValue(doc, stats.name);
+            boolean missing = isMissing(value);
+            if (missing) {
+                stats.missing++;
+                if (stats.content) {
+                    allContent = false;
+                }
+            } else if (stats.terms != null) {
+                Set<String> docTerms = toTerms(value);
+                docTerms.forEach(term -> stats.terms.merge(term, 1L, Long::sum));
+            }
+        }
+        if (allContent) {
+            count++;
+        }
+    }
+
+    /**
+     * Adds the statistics of another aggregator built for the same features.
+     */
+    public void merge(DatasetStatsAggregator other) {
+        total += other.total;
+        count += other.count;
+        other.features.forEach((name, stats) -> {
+            FeatureStats mine = features.get(name);
+            if (mine == null) {
+                throw new IllegalArgumentException("Unable to merge statistics of different features " + name);
+            }
+            mine.missing += stats.missing;
+            if (mine.terms != null && stats.terms != null) {
+                stats.terms.forEach((term, docCount) -> mine.terms.merge(term, docCount, Long::sum));
+            }
+        });
+    }
+
+    /**
+     * Gets the statistics, empty if no document was added.
+     */
+    public Collection<Statistic> getStatistics() {
+        if (total < 1) {
+            return Collections.emptyList();
+        }
+        List<Statistic> stats = new ArrayList<>();
+        for (FeatureStats feature : features.values()) {
+            stats.add(new Statistic(feature.aggKey(AGG_MISSING), feature.name, feature.inputType, AGG_MISSING,
+                    feature.missing));
+            if (feature.terms != null) {
+                Statistic terms = new Statistic(feature.aggKey(AGG_TYPE_TERMS), feature.name, feature.inputType,
+                        AGG_TYPE_TERMS, null);
+                terms.setValue(topTerms(feature.terms));
+                stats.add(terms);
+                stats.add(new Statistic(feature.aggKey(AGG_CARDINALITY), feature.name, feature.inputType,
+                        AGG_CARDINALITY, (double) feature.terms.size()));
+            }
+        }
+        stats.add(Statistic.of(STATS_TOTAL, STATS_TOTAL, STATS_TOTAL, STATS_TOTAL, total));
+        stats.add(Statistic.of(STATS_COUNT, STATS_COUNT, STATS_COUNT, STATS_COUNT, count));
+        return stats;
+    }
+
+    protected List<Bucket> topTerms(Map<String, Long> terms) {
+        return terms.entrySet()
+                    .stream()
+                    .sorted(Map.Entry.<String, Long> comparingByValue(Comparator.reverseOrder())
+                                     .thenComparing(Map.Entry.comparingByKey()))
+                    .limit(maxTerms)
+                    .map(term -> new Bucket(term.getKey(), term.getValue()))
+                    .collect(Collectors.toList());
+    }
+
+    protected boolean isMissing(Serializable value) {
+        if (value == null) {
+            return true;
+        } else if (value.getClass().isArray()) {
+            return Array.getLength(value) == 0;
+        } else if (value instanceof Collection) {
+            return ((Collection<?>) value).isEmpty();
+        }
+        return false;
+    }
+
+    /**
+     * Gets the distinct terms of a value, the way they are keyed by Elasticsearch.
+     */
+    protected Set<String> toTerms(Serializable value) {
+        Set<String> terms = new HashSet<>();
+        if (value.getClass().isArray()) {
+            for (int i = 0; i < Array.getLength(value); i++) {
+                addTerm(terms, Array.get(value, i));
+            }
+        } else if (value instanceof Collection) {
+            ((Collection<?>) value).forEach(val -> addTerm(terms, val));
+        } else {
+            addTerm(terms, value);
+        }
+        return terms;
+    }
+
+    protected void addTerm(Set<String> terms, Object value) {
+        if (value == null || value instanceof Blob) {
+            return;
+        }
+        if (value instanceof Calendar) {
+            terms.add(DATE_TERM_FORMAT.format(((Calendar) value).toInstant()));
+        } else if (value instanceof Date) {
+            terms.add(DATE_TERM_FORMAT.format(((Date) value).toInstant()));
+        } else {
+            terms.add(value.toString());
+        }
+    }
+
+    /**
+     * The statistics of a single feature.
+     */
+    protected static class FeatureStats {
+
+        protected final String name;
+
+        protected final String type;
+
+        protected final String inputType;
+
+        protected final boolean content;
+
+        protected final Map<String, Long> terms;
+
+        protected long missing;
+
+        public FeatureStats(PropertyType prop, Field field) {
+            this.name = prop.getName();
+            this.type = prop.getType();
+            this.inputType = DatasetStatsService.getInputType(field);
+            boolean contentField = field != null && TypeConstants.isContentType(field.getType());
+            this.content = IMAGE_TYPE.equals(type) || (TEXT_TYPE.equals(type) && contentField);
+            this.terms = TEXT_TYPE.equals(type) || CATEGORY_TYPE.equals(type) ? new HashMap<>() : null;
+        }
+
+        protected String aggKey(String aggType) {
+            // same id as the Elasticsearch aggregate, which is built on the blob length for images
+            return aggType + "_" + (IMAGE_TYPE.equals(type) ? name + "/length" : name);
+        }
+    }
+}
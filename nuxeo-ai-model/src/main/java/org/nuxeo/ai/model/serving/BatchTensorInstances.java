@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2022 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Nuxeo
+ */
+package org.nuxeo.ai.model.serving;
+
+import java.util.List;
+import java.util.Map;
+import org.nuxeo.ai.sdk.objects.TensorInstances;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The tensor instances of several documents, the document id of each instance is sent in the same order.
+ */
+public class BatchTensorInstances extends TensorInstances {
+
+    protected final List<String> docIds;
+
+    public BatchTensorInstances(List<String> docIds, List<Map<String, Tensor>> instances) {
+        super(docIds.size() == 1 ? docIds.get(0) : null, instances);
+        this.docIds = docIds;
+    }
+
+    @JsonProperty("docIds")
+    public List<String> getDocIds() {
+        return docIds;
+    }
+}
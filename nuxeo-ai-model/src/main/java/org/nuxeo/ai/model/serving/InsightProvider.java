@@ -21,9 +21,11 @@ package org.nuxeo.ai.model.serving;
 
 import static org.nuxeo.ai.enrichment.EnrichmentUtils.makeKeyUsingBlobDigests;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 import org.nuxeo.ai.enrichment.AbstractEnrichmentProvider;
 import org.nuxeo.ai.enrichment.EnrichmentCachable;
 import org.nuxeo.ai.enrichment.EnrichmentMetadata;
@@ -59,6 +61,29 @@ public class InsightProvider extends AbstractEnrichmentProvider implements Enric
         }));
     }
 
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public List<Collection<EnrichmentMetadata>> enrich(List<BlobTextFromDocument> blobTexts) {
+        String repositoryName = blobTexts.get(0).getRepositoryName();
+        if (blobTexts.stream().anyMatch(b -> !repositoryName.equals(b.getRepositoryName()))) {
+            return blobTexts.stream().map(this::enrich).collect(Collectors.toList());
+        }
+        return TransactionHelper.runInTransaction(() -> CoreInstance.doPrivileged(repositoryName, session -> {
+            List<DocumentModel> docs = new ArrayList<>(blobTexts.size());
+            for (BlobTextFromDocument btfd : blobTexts) {
+                docs.add(session.getDocument(new IdRef(btfd.getId())));
+            }
+
+            ModelServingService mss = Framework.getService(ModelServingService.class);
+            // The results are in the order of the documents, a document can be in the batch several times
+            return new ArrayList<Collection<EnrichmentMetadata>>(mss.predict(docs));
+        }));
+    }
+
     @Override
     public RetryPolicy getRetryPolicy() {
         return super.getRetryPolicy().abortOn(NuxeoException.class);
@@ -79,4 +79,12 @@ public interface ModelServingService extends Reloadable {
      * model and return the results.
      */
     List<EnrichmentMetadata> predict(DocumentModel documentModel);
+
+    /**
+     * Same as {@link #predict(DocumentModel)} for several documents, each model is called once with all the documents
+     * passing its predicate.
+     *
+     * @return the results of each document, in the order of the documents
+     */
+    List<List<EnrichmentMetadata>> predict(List<DocumentModel> documents);
 }
@@ -18,6 +18,7 @@
  */
 package org.nuxeo.ai.model.serving;
 
+import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static org.nuxeo.ai.listeners.ContinuousExportListener.ENTRIES_KEY;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.notNull;
@@ -25,21 +26,33 @@ import static org.nuxeo.ai.pipes.services.JacksonUtil.MAPPER;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.cloud.CloudClient;
 import org.nuxeo.ai.enrichment.EnrichmentMetadata;
 import org.nuxeo.ai.enrichment.EnrichmentProvider;
 import org.nuxeo.ai.listeners.InvalidateModelDefinitionsListener;
+import org.nuxeo.ai.metrics.AIMetrics;
 import org.nuxeo.ai.model.AIModel;
 import org.nuxeo.ai.model.ModelProperty;
 import org.nuxeo.ai.services.AIComponent;
@@ -64,9 +77,12 @@ import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
 import org.nuxeo.runtime.model.Descriptor;
 import org.nuxeo.runtime.pubsub.PubSubService;
+import org.nuxeo.runtime.services.config.ConfigurationService;
 import org.nuxeo.runtime.transaction.TransactionHelper;
 import com.fasterxml.jackson.core.type.TypeReference;
 
+import io.dropwizard.metrics5.Timer;
+
 /**
  * An implementation of a service that serves runtime AI models
  */
@@ -99,15 +115,24 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
 
     public static final String AI_DATATYPES = "aidatatypes";
 
-    protected final Map<String, ModelDescriptor> configs = new HashMap<>();
+    /**
+     * The current models, readers use the snapshot they get and updates publish a new one.
+     */
+    protected final AtomicReference<Registry> registry = new AtomicReference<>(Registry.EMPTY);
 
-    protected final Map<String, RuntimeModel> models = new HashMap<>();
+    protected DirectoryEntryResolver inputTypesResolver;
 
-    protected final Map<String, Predicate<DocumentModel>> predicates = new HashMap<>();
+    public static final String PREDICT_THREADS_CONF = "nuxeo.ai.model.serving.predict.threads";
 
-    protected final Map<String, Predicate<DocumentModel>> filterPredicates = new HashMap<>();
+    public static final String PREDICT_TIMEOUT_CONF = "nuxeo.ai.model.serving.predict.timeout.ms";
 
-    protected DirectoryEntryResolver inputTypesResolver;
+    public static final int DEFAULT_PREDICT_THREADS = 1;
+
+    public static final long DEFAULT_PREDICT_TIMEOUT = 30_000;
+
+    protected ExecutorService predictExecutor;
+
+    protected long predictTimeout;
 
     /**
      * Makes a DocumentModel predicate including the properties
@@ -128,14 +153,22 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
     public void registerContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
         if (MODELS_AP.equals(extensionPoint)) {
             ModelDescriptor descriptor = (ModelDescriptor) contribution;
-            this.configs.put(descriptor.id, descriptor);
+            registry.updateAndGet(current -> current.withConfig(descriptor));
         }
     }
 
     @Override
     public void start(ComponentContext context) {
         super.start(context);
-        configs.forEach((key, value) -> addModel(value));
+        ConfigurationService cs = Framework.getService(ConfigurationService.class);
+        int threads = cs.getInteger(PREDICT_THREADS_CONF, DEFAULT_PREDICT_THREADS);
+        predictTimeout = cs.getLong(PREDICT_TIMEOUT_CONF, DEFAULT_PREDICT_TIMEOUT);
+        if (threads > 1) {
+            // The callers wait for their predictions up to the timeout, so the queue is bounded by the callers
+            predictExecutor = Executors.newFixedThreadPool(threads,
+                    new BasicThreadFactory.Builder().namingPattern("ai-model-serving-%d").daemon(true).build());
+        }
+        registry.get().configs.values().forEach(this::addModel);
         PubSubService pss = Framework.getService(PubSubService.class);
         if (pss != null) {
             pss.registerSubscriber(AIConfigurationServiceImpl.TOPIC, this::modelSubscriber);
@@ -172,9 +205,7 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
         try {
             Descriptor desc = pcs.retrieve(contribKey);
             if (desc == null) {
-                this.models.remove(contribKey);
-                this.predicates.remove(contribKey);
-                this.filterPredicates.remove(contribKey);
+                registry.updateAndGet(current -> current.withoutModel(contribKey));
             }
             if (desc instanceof ModelDescriptor) {
                 this.reload(desc);
@@ -186,83 +217,195 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
 
     @Override
     public void addModel(ModelDescriptor descriptor) {
+        RuntimeModel model = createModel(descriptor);
+        registry.updateAndGet(current -> current.withModel(descriptor, model));
+    }
+
+    /**
+     * Replaces all the models in a single step, lookups see either the previous models or the new ones.
+     */
+    protected void replaceModels(Collection<ModelDescriptor> descriptors) {
+        Registry next = Registry.EMPTY;
+        for (ModelDescriptor descriptor : descriptors) {
+            next = next.withModel(descriptor, createModel(descriptor));
+        }
+        registry.set(next);
+    }
+
+    /**
+     * Validates the descriptor and creates its runtime model.
+     */
+    protected RuntimeModel createModel(ModelDescriptor descriptor) {
         if (!descriptor.getInputs().stream().allMatch(i -> getInputTypesResolver().validate(i.getType()))) {
             throw new IllegalArgumentException(
                     String.format("The input types %s for service %s must be defined in the %s vocabulary",
                             descriptor.getInputs(), descriptor.id, AI_DATATYPES));
         }
 
-        configs.put(descriptor.id, descriptor);
-
         log.debug("Registering a custom model as {}, info is {}.", descriptor.id, descriptor.info);
         RuntimeModel model = descriptor.getModel();
         if (model instanceof EnrichmentProvider) {
             Framework.getService(AIComponent.class).addEnrichmentProvider(descriptor.id, (EnrichmentProvider) model);
         }
 
-        models.put(descriptor.id, model);
-        predicates.put(descriptor.id, makePredicate(descriptor.getInputs(), descriptor.filter.get()));
-        filterPredicates.put(descriptor.id, descriptor.filter.get());
+        return model;
     }
 
     @Override
     public void stop(ComponentContext context) throws InterruptedException {
         super.stop(context);
+        if (predictExecutor != null) {
+            predictExecutor.shutdownNow();
+            predictExecutor = null;
+        }
         this.inputTypesResolver = null;
-        this.models.clear();
-        this.predicates.clear();
+        registry.updateAndGet(Registry::withoutModels);
     }
 
     @Override
     public Collection<ModelDescriptor> listModels() {
-        return configs.values();
+        return registry.get().configs.values();
     }
 
     @Override
     public RuntimeModel getModel(String modelId) {
-        return models.get(modelId);
+        return registry.get().models.get(modelId);
     }
 
     @Override
     public RuntimeModel deleteModel(String modelId) {
-        return models.remove(modelId);
+        return registry.getAndUpdate(current -> current.withoutModel(modelId)).models.get(modelId);
     }
 
     @Override
     public Predicate<DocumentModel> getPredicate(String modelId) {
-        return predicates.get(modelId);
+        return registry.get().predicates.get(modelId);
     }
 
     @Override
     public Set<Set<ModelProperty>> getGroupedInputs(DocumentModel document) {
-        return filterPredicates.entrySet()
-                               .stream()
-                               .filter(e -> e.getValue().test(document))
-                               .map(e -> models.get(e.getKey()))
-                               .filter(Objects::nonNull)
-                               .map(AIModel::getInputs)
-                               .collect(Collectors.toSet());
+        Registry current = registry.get();
+        return current.filterPredicates.entrySet()
+                                       .stream()
+                                       .filter(e -> e.getValue().test(document))
+                                       .map(e -> current.models.get(e.getKey()))
+                                       .filter(Objects::nonNull)
+                                       .map(AIModel::getInputs)
+                                       .collect(Collectors.toSet());
     }
 
     @Override
     public Set<ModelProperty> getFlatInputs(DocumentModel document) {
-        return filterPredicates.entrySet()
-                               .stream()
-                               .filter(e -> e.getValue().test(document))
-                               .map(e -> models.get(e.getKey()))
-                               .filter(Objects::nonNull)
-                               .flatMap(m -> m.getInputs().stream())
-                               .collect(Collectors.toSet());
+        Registry current = registry.get();
+        return current.filterPredicates.entrySet()
+                                       .stream()
+                                       .filter(e -> e.getValue().test(document))
+                                       .map(e -> current.models.get(e.getKey()))
+                                       .filter(Objects::nonNull)
+                                       .flatMap(m -> m.getInputs().stream())
+                                       .collect(Collectors.toSet());
     }
 
     @Override
     public List<EnrichmentMetadata> predict(DocumentModel document) {
-        return predicates.entrySet()
-                         .stream()
-                         .filter(e -> e.getValue().test(document))
-                         .map(e -> models.get(e.getKey()).predict(document))
-                         .filter(Objects::nonNull)
-                         .collect(Collectors.toList());
+        Registry current = registry.get();
+        Map<String, Supplier<EnrichmentMetadata>> calls = new LinkedHashMap<>();
+        current.predicates.forEach((modelId, predicate) -> {
+            if (predicate.test(document)) {
+                RuntimeModel model = current.models.get(modelId);
+                Supplier<List<EnrichmentMetadata>> call = model.prepare(singletonList(document));
+                calls.put(modelId, () -> call.get().get(0));
+            }
+        });
+        return invokeModels(calls).values().stream().filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    @Override
+    public List<List<EnrichmentMetadata>> predict(List<DocumentModel> documents) {
+        // Documents are matched by position, the same document can be given several times
+        Map<String, List<Integer>> matchingPositions = new HashMap<>();
+        Registry current = registry.get();
+        Map<String, Supplier<List<EnrichmentMetadata>>> calls = new LinkedHashMap<>();
+        current.predicates.forEach((modelId, predicate) -> {
+            List<Integer> positions = new ArrayList<>();
+            List<DocumentModel> matching = new ArrayList<>();
+            for (int i = 0; i < documents.size(); i++) {
+                if (predicate.test(documents.get(i))) {
+                    positions.add(i);
+                    matching.add(documents.get(i));
+                }
+            }
+            if (!matching.isEmpty()) {
+                RuntimeModel model = current.models.get(modelId);
+                matchingPositions.put(modelId, positions);
+                calls.put(modelId, model.prepare(matching));
+            }
+        });
+
+        List<List<EnrichmentMetadata>> results = new ArrayList<>(documents.size());
+        documents.forEach(doc -> results.add(new ArrayList<>()));
+        invokeModels(calls).forEach((modelId, predicted) -> {
+            List<Integer> positions = matchingPositions.get(modelId);
+            for (int i = 0; i < predicted.size(); i++) {
+                if (predicted.get(i) != null) {
+                    results.get(positions.get(i)).add(predicted.get(i));
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Calls the models concurrently and waits for them up to the prediction timeout. A model that doesn't answer in
+     * time is left out of the results, an error is propagated. The calls are prepared by the caller and don't use its
+     * documents or transaction.
+     *
+     * @return the results keyed by model id, in the order of the calls
+     */
+    protected <T> Map<String, T> invokeModels(Map<String, Supplier<T>> calls) {
+        AIMetrics metrics = Framework.getService(AIComponent.class).getMetrics();
+        Map<String, T> results = new LinkedHashMap<>();
+        if (calls.size() <= 1 || predictExecutor == null) {
+            calls.forEach((modelId, call) -> results.put(modelId, timed(metrics, modelId, call)));
+            return results;
+        }
+
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        calls.forEach((modelId, call) -> futures.put(modelId,
+                predictExecutor.submit(() -> timed(metrics, modelId, call))));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(predictTimeout);
+        try {
+            for (Map.Entry<String, Future<T>> entry : futures.entrySet()) {
+                try {
+                    long remaining = Math.max(0, deadline - System.nanoTime());
+                    results.put(entry.getKey(), entry.getValue().get(remaining, TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    entry.getValue().cancel(true);
+                    log.warn("Model {} did not answer within {}ms, its prediction is skipped", entry.getKey(),
+                            predictTimeout);
+                }
+            }
+        } catch (ExecutionException e) {
+            futures.values().forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new NuxeoException(e.getCause());
+        } catch (InterruptedException e) {
+            futures.values().forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+        return results;
+    }
+
+    protected <T> T timed(AIMetrics metrics, String modelId, Supplier<T> call) {
+        Timer.Context time = metrics.getModelPredictionTime(modelId).time();
+        try {
+            return call.get();
+        } finally {
+            time.stop();
+        }
     }
 
     protected void modelInvalidator(String topic, byte[] message) {
@@ -275,8 +418,6 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
 
                 Map<String, Object> resp = MAPPER.readValue(published.getStream(), RESPONSE_TYPE_REFERENCE);
                 if (resp.containsKey(ENTRIES_KEY)) {
-                    clearAll();
-
                     @SuppressWarnings("unchecked")
                     List<Map<String, Serializable>> entries = (List<Map<String, Serializable>>) resp.get(ENTRIES_KEY);
 
@@ -285,9 +426,9 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
                                                                     .collect(Collectors.toMap(
                                                                             desc -> desc.info.get(MODEL_NAME_KEY),
                                                                             desc -> desc));
-                    newModels.values().forEach(this::addModel);
+                    replaceModels(newModels.values());
                     log.info("Insight cloud has {} published model definitions; Model registry size after update {}",
-                            newModels.size(), models.size());
+                            newModels.size(), registry.get().models.size());
                 } else {
                     log.warn("No active models were found");
                 }
@@ -298,13 +439,6 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
         });
     }
 
-    protected void clearAll() {
-        configs.clear();
-        models.clear();
-        predicates.clear();
-        filterPredicates.clear();
-    }
-
     protected ModelDescriptor construct(Map<String, Serializable> entry) {
         @SuppressWarnings("unchecked")
         Map<String, Serializable> properties = (Map<String, Serializable>) entry.get(PROPERTIES_KEY);
@@ -359,4 +493,62 @@ public class ModelServingServiceImpl extends DefaultComponent implements ModelSe
         }
         return inputTypesResolver;
     }
+
+    /**
+     * An immutable snapshot of the model configurations, runtime models and predicates. Updates return a new snapshot.
+     */
+    protected static final class Registry {
+
+        protected static final Registry EMPTY = new Registry(Collections.emptyMap(), Collections.emptyMap(),
+                Collections.emptyMap(), Collections.emptyMap());
+
+        protected final Map<String, ModelDescriptor> configs;
+
+        protected final Map<String, RuntimeModel> models;
+
+        protected final Map<String, Predicate<DocumentModel>> predicates;
+
+        protected final Map<String, Predicate<DocumentModel>> filterPredicates;
+
+        protected Registry(Map<String, ModelDescriptor> configs, Map<String, RuntimeModel> models,
+                Map<String, Predicate<DocumentModel>> predicates,
+                Map<String, Predicate<DocumentModel>> filterPredicates) {
+            this.configs = Collections.unmodifiableMap(configs);
+            this.models = Collections.unmodifiableMap(models);
+            this.predicates = Collections.unmodifiableMap(predicates);
+            this.filterPredicates = Collections.unmodifiableMap(filterPredicates);
+        }
+
+        protected Registry withConfig(ModelDescriptor descriptor) {
+            Map<String, ModelDescriptor> newConfigs = new HashMap<>(configs);
+            newConfigs.put(descriptor.id, descriptor);
+            return new Registry(newConfigs, models, predicates, filterPredicates);
+        }
+
+        protected Registry withModel(ModelDescriptor descriptor, RuntimeModel model) {
+            Map<String, ModelDescriptor> newConfigs = new HashMap<>(configs);
+            Map<String, RuntimeModel> newModels = new HashMap<>(models);
+            Map<String, Predicate<DocumentModel>> newPredicates = new HashMap<>(predicates);
+            Map<String, Predicate<DocumentModel>> newFilterPredicates = new HashMap<>(filterPredicates);
+            newConfigs.put(descriptor.id, descriptor);
+            newModels.put(descriptor.id, model);
+            newPredicates.put(descriptor.id, makePredicate(descriptor.getInputs(), descriptor.filter.get()));
+            newFilterPredicates.put(descriptor.id, descriptor.filter.get());
+            return new Registry(newConfigs, newModels, newPredicates, newFilterPredicates);
+        }
+
+        protected Registry withoutModel(String modelId) {
+            Map<String, RuntimeModel> newModels = new HashMap<>(models);
+            Map<String, Predicate<DocumentModel>> newPredicates = new HashMap<>(predicates);
+            Map<String, Predicate<DocumentModel>> newFilterPredicates = new HashMap<>(filterPredicates);
+            newModels.remove(modelId);
+            newPredicates.remove(modelId);
+            newFilterPredicates.remove(modelId);
+            return new Registry(configs, newModels, newPredicates, newFilterPredicates);
+        }
+
+        protected Registry withoutModels() {
+            return new Registry(configs, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+        }
+    }
 }
@@ -18,6 +18,9 @@
  */
 package org.nuxeo.ai.model.serving;
 
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import org.nuxeo.ai.enrichment.EnrichmentMetadata;
 import org.nuxeo.ai.model.AIModel;
 import org.nuxeo.ecm.core.api.DocumentModel;
@@ -36,4 +39,21 @@ public interface RuntimeModel extends AIModel {
      * Predict a result for the supplied document
      */
     EnrichmentMetadata predict(DocumentModel doc);
+
+    /**
+     * Predict a result for each of the supplied documents, in the same order, with null when there is no result.
+     * Implementations should override it to predict several documents in a single call.
+     */
+    default List<EnrichmentMetadata> predict(List<DocumentModel> docs) {
+        return docs.stream().map(this::predict).collect(Collectors.toList());
+    }
+
+    /**
+     * Reads the supplied documents and returns the prediction call, which doesn't use the documents anymore and can run
+     * on another thread. By default the prediction is made by the caller.
+     */
+    default Supplier<List<EnrichmentMetadata>> prepare(List<DocumentModel> docs) {
+        List<EnrichmentMetadata> results = predict(docs);
+        return () -> results;
+    }
 }
@@ -42,6 +42,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -68,6 +69,7 @@ import org.nuxeo.runtime.api.Framework;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.dropwizard.metrics5.Timer;
 
@@ -114,26 +116,51 @@ public class TFRuntimeModel extends AbstractRuntimeModel implements EnrichmentPr
      */
     public EnrichmentMetadata predict(CoreSession session, Map<String, Tensor> inputValues, String repositoryName,
             String documentRef) {
+        return predict(session, singletonList(inputValues), repositoryName, singletonList(documentRef)).get(0);
+    }
+
+    /**
+     * For each of the supplied input values try to predict a result, all the instances are sent in a single call.
+     *
+     * @return the results in the order of the input values, with null when there is no prediction
+     */
+    public List<EnrichmentMetadata> predict(CoreSession session, List<Map<String, Tensor>> inputValues,
+            String repositoryName, List<String> documentRefs) {
+        List<EnrichmentMetadata> results = new ArrayList<>(Collections.nCopies(inputValues.size(), null));
+        List<Integer> positions = new ArrayList<>(inputValues.size());
+        for (int i = 0; i < inputValues.size(); i++) {
+            if (inputValues.get(i).size() != inputs.size()) {
+                log.debug(getName() + " did not call prediction.  Properties provided were "
+                        + inputValues.get(i).keySet());
+            } else {
+                positions.add(i);
+            }
+        }
+        if (positions.isEmpty()) {
+            return results;
+        }
+
         Timer.Context responseTime = Framework.getService(AIComponent.class)
                                               .getMetrics()
                                               .getInsightPredictionTime()
                                               .time();
         try {
-            if (inputValues.size() != inputs.size()) {
-                log.debug(getName() + " did not call prediction.  Properties provided were " + inputValues.keySet());
-                return null;
-            }
             CloudClient client = Framework.getService(CloudClient.class);
             if (client.isAvailable(session)) {
-                TensorInstances tensorInstances = new TensorInstances(documentRef,
-                        Collections.singletonList(inputValues));
+                List<Map<String, Tensor>> instances = positions.stream()
+                                                               .map(inputValues::get)
+                                                               .collect(Collectors.toList());
+                List<String> refs = positions.stream().map(documentRefs::get).collect(Collectors.toList());
+                TensorInstances tensorInstances = new BatchTensorInstances(refs, instances);
                 String result = client.predict(session, getName(), tensorInstances);
                 if (StringUtils.isNotEmpty(result)) {
-                    EnrichmentMetadata meta = handlePredict(result, repositoryName, documentRef);
+                    List<EnrichmentMetadata> metas = handlePredict(result, repositoryName, refs);
+                    for (int i = 0; i < metas.size(); i++) {
+                        results.set(positions.get(i), metas.get(i));
+                    }
                     if (log.isDebugEnabled()) {
-                        log.debug(getName() + ": prediction metadata is: " + MAPPER.writeValueAsString(meta));
+                        log.debug(getName() + ": prediction metadata is: " + MAPPER.writeValueAsString(metas));
                     }
-                    return meta;
                 } else {
                     Optional<InsightClient> ic = client.getClient(session);
                     if (ic.isPresent()) {
@@ -141,14 +168,13 @@ public class TFRuntimeModel extends AbstractRuntimeModel implements EnrichmentPr
                     } else {
                         log.warn("Unsuccessful call and cannot resolve Insight client");
                     }
-                    return null;
                 }
             }
 
-            return null;
+            return results;
         } catch (IOException e) {
             log.error("User {} failed on prediction", session.getPrincipal().getActingUser(), e);
-            return null;
+            return results;
         } finally {
             responseTime.stop();
         }
@@ -159,6 +185,49 @@ public class TFRuntimeModel extends AbstractRuntimeModel implements EnrichmentPr
      */
     protected EnrichmentMetadata handlePredict(String content, String repositoryName, String documentRef) {
         Map<String, List<EnrichmentMetadata.Label>> labelledResults = parseResponse(content);
+        return buildMetadata(labelledResults, content, repositoryName, documentRef);
+    }
+
+    /**
+     * Handle a response holding one result per document and return the normalized EnrichmentMetadata, in the order of
+     * the documents.
+     */
+    protected List<EnrichmentMetadata> handlePredict(String content, String repositoryName,
+            List<String> documentRefs) {
+        if (documentRefs.size() == 1) {
+            return singletonList(handlePredict(content, repositoryName, documentRefs.get(0)));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(getName() + ": response is: " + content);
+        }
+        JsonNode resultsNode;
+        try {
+            resultsNode = MAPPER.readTree(content).get(JSON_RESULTS);
+        } catch (IOException e) {
+            throw new NuxeoException("Unable to read the json response for " + getName(), e);
+        }
+        if (resultsNode == null || resultsNode.size() != documentRefs.size()) {
+            throw new NuxeoException(String.format("%s returned %s results for %s documents", getName(),
+                    resultsNode == null ? 0 : resultsNode.size(), documentRefs.size()));
+        }
+        List<EnrichmentMetadata> metadata = new ArrayList<>(documentRefs.size());
+        for (int i = 0; i < documentRefs.size(); i++) {
+            JsonNode resultNode = resultsNode.get(i);
+            Map<String, List<EnrichmentMetadata.Label>> labelledResults = new HashMap<>();
+            try {
+                parseResult(resultNode, labelledResults);
+            } catch (NullPointerException e) {
+                log.warn(String.format("Unable to read the json result: %s", resultNode), e);
+            }
+            ObjectNode raw = MAPPER.createObjectNode();
+            raw.putArray(JSON_RESULTS).add(resultNode);
+            metadata.add(buildMetadata(labelledResults, raw.toString(), repositoryName, documentRefs.get(i)));
+        }
+        return metadata;
+    }
+
+    protected EnrichmentMetadata buildMetadata(Map<String, List<EnrichmentMetadata.Label>> labelledResults,
+            String content, String repositoryName, String documentRef) {
         if (!labelledResults.isEmpty()) {
             EnrichmentMetadata.Builder builder = new EnrichmentMetadata.Builder(kind, getId(), inputNames,
                     repositoryName, documentRef, Collections.emptySet());
@@ -186,33 +255,38 @@ public class TFRuntimeModel extends AbstractRuntimeModel implements EnrichmentPr
             JsonNode jsonResponse = MAPPER.readTree(content);
             jsonResponse.get(JSON_RESULTS)
                         .elements()
-                        .forEachRemaining(
-                                resultsNode -> resultsNode.get(JSON_OUTPUTS).elements().forEachRemaining(outputNode -> {
-                                    String outputName = outputNode.asText();
-                                    ArrayNode outputProbabilities = (ArrayNode) resultsNode.get(outputName);
-                                    ArrayNode outputLabels = (ArrayNode) resultsNode.get(outputName + JSON_LABELS);
-                                    List<EnrichmentMetadata.Label> labels = new ArrayList<>();
-                                    if (outputLabels.size() == outputProbabilities.size()) {
-                                        for (int i = 0; i < outputLabels.size(); i++) {
-                                            float confidence = outputProbabilities.get(i).floatValue();
-                                            if (confidence > minConfidence) {
-                                                labels.add(new EnrichmentMetadata.Label(outputLabels.get(i).asText(),
-                                                        confidence, 0L));
-                                            }
-                                        }
-                                    } else {
-                                        log.warn("Mismatch of labels and probabilities cardinality");
-                                    }
-                                    if (!labels.isEmpty()) {
-                                        results.put(outputName, labels);
-                                    }
-                                }));
+                        .forEachRemaining(resultsNode -> parseResult(resultsNode, results));
         } catch (NullPointerException | IOException e) {
             log.warn(String.format("Unable to read the json response: %s", content), e);
         }
         return results;
     }
 
+    /**
+     * Parse the labels of a single result node into the results map
+     */
+    protected void parseResult(JsonNode resultsNode, Map<String, List<EnrichmentMetadata.Label>> results) {
+        resultsNode.get(JSON_OUTPUTS).elements().forEachRemaining(outputNode -> {
+            String outputName = outputNode.asText();
+            ArrayNode outputProbabilities = (ArrayNode) resultsNode.get(outputName);
+            ArrayNode outputLabels = (ArrayNode) resultsNode.get(outputName + JSON_LABELS);
+            List<EnrichmentMetadata.Label> labels = new ArrayList<>();
+            if (outputLabels.size() == outputProbabilities.size()) {
+                for (int i = 0; i < outputLabels.size(); i++) {
+                    float confidence = outputProbabilities.get(i).floatValue();
+                    if (confidence > minConfidence) {
+                        labels.add(new EnrichmentMetadata.Label(outputLabels.get(i).asText(), confidence, 0L));
+                    }
+                }
+            } else {
+                log.warn("Mismatch of labels and probabilities cardinality");
+            }
+            if (!labels.isEmpty()) {
+                results.put(outputName, labels);
+            }
+        });
+    }
+
     /**
      * Prepares the http request to send to Tensorflow serving
      */
@@ -237,77 +311,173 @@ public class TFRuntimeModel extends AbstractRuntimeModel implements EnrichmentPr
 
     @Override
     public EnrichmentMetadata predict(DocumentModel doc) {
+        return predict(singletonList(doc)).get(0);
+    }
+
+    @Override
+    public List<EnrichmentMetadata> predict(List<DocumentModel> docs) {
+        return prepare(docs).get();
+    }
+
+    /**
+     * Converts the documents to tensors, the returned call only sends them to Insight.
+     */
+    @Override
+    public Supplier<List<EnrichmentMetadata>> prepare(List<DocumentModel> docs) {
         Timer.Context preConversionTime = Framework.getService(AIComponent.class)
                                                    .getMetrics()
                                                    .getInsightPreConversionTime()
                                                    .time();
+        List<Integer> positions = new ArrayList<>(docs.size());
+        List<Map<String, Tensor>> instances = new ArrayList<>(docs.size());
+        List<String> docIds = new ArrayList<>(docs.size());
+        String repoName = UNSET;
         try {
-            Map<String, Tensor> props = new HashMap<>(inputs.size());
-            for (ModelProperty input : inputs) {
-                String type = input.getType() == null ? "none" : input.getType();
-                switch (type) {
-                case IMAGE_TYPE:
-                    Blob blob = getPropertyValue(doc, input.getName(), Blob.class);
-                    if (blob == null) {
-                        return null;
-                    }
-                    // Get rendition if it exists
-                    Blob rendition = getPictureConversion(doc, (ManagedBlob) blob);
-                    // If Blob size is too big, just abort by returning null
-                    if (rendition.getLength() < Long.parseLong(
-                            Framework.getProperty(AI_BLOB_MAX_SIZE_CONF_VAR, AI_BLOB_MAX_SIZE_VALUE))) {
-                        props.put(input.getName(), Tensor.image(convertImageBlob(rendition)));
-                    } else {
-                        return null;
-                    }
-                    break;
-                case TEXT_TYPE:
-                    Serializable propVal = getPropertyValue(doc, input.getName());
-                    if (propVal instanceof Blob) {
-                        String text = convertTextBlob(getPropertyValue(doc, input.getName(), Blob.class));
-                        props.put(input.getName(), Tensor.text(text));
-                    } else {
-                        String val = getPropertyValue(doc, input.getName(), String.class);
-                        props.put(input.getName(), Tensor.text(val));
-                    }
-                    break;
-                case CATEGORY_TYPE:
-                    String categories = getPropertyValue(doc, input.getName(), String.class);
-                    if (isNotEmpty(categories)) {
-                        props.put(input.getName(), Tensor.category(categories.split(LIST_DELIMITER_PATTERN)));
-                    }
-                    break;
-                default:
-                    // default to text String
-                    props.put(input.getName(), Tensor.text(getPropertyValue(doc, input.getName(), String.class)));
+            for (int i = 0; i < docs.size(); i++) {
+                DocumentModel doc = docs.get(i);
+                Map<String, Tensor> props = toTensors(doc);
+                if (props == null) {
+                    continue;
                 }
+                String docId;
+                try {
+                    repoName = doc.getRepositoryName();
+                    docId = doc.getId();
+                } catch (UnsupportedOperationException e) {
+                    log.debug("Unable to get the document repositoryName and id.");
+                    docId = UNSET;
+                }
+                positions.add(i);
+                instances.add(props);
+                docIds.add(docId);
             }
+        } finally {
+            preConversionTime.stop();
+        }
 
-            String repoName;
-            String docId;
+        // The session is only used to resolve the Insight client of its principal
+        CoreSession session = positions.isEmpty() ? null : docs.get(positions.get(0)).getCoreSession();
+        String repositoryName = repoName;
+        return () -> {
+            List<EnrichmentMetadata> results = new ArrayList<>(Collections.nCopies(docs.size(), null));
+            if (!positions.isEmpty()) {
+                List<EnrichmentMetadata> predicted = predict(session, instances, repositoryName, docIds);
+                for (int i = 0; i < predicted.size(); i++) {
+                    results.set(positions.get(i), predicted.get(i));
+                }
+            }
+            return results;
+        };
+    }
 
-            try {
-                repoName = doc.getRepositoryName();
-                docId = doc.getId();
-            } catch (UnsupportedOperationException e) {
-                log.debug("Unable to get the document repositoryName and id.");
-                repoName = UNSET;
-                docId = UNSET;
+    /**
+     * Converts the document properties to the model input tensors, returns null if the document can't be predicted.
+     */
+    protected Map<String, Tensor> toTensors(DocumentModel doc) {
+        Map<String, Tensor> props = new HashMap<>(inputs.size());
+        for (ModelProperty input : inputs) {
+            String type = input.getType() == null ? "none" : input.getType();
+            switch (type) {
+            case IMAGE_TYPE:
+                Blob blob = getPropertyValue(doc, input.getName(), Blob.class);
+                if (blob == null) {
+                    return null;
+                }
+                // Get rendition if it exists
+                Blob rendition = getPictureConversion(doc, (ManagedBlob) blob);
+                // If Blob size is too big, just abort by returning null
+                if (rendition.getLength() < Long.parseLong(
+                        Framework.getProperty(AI_BLOB_MAX_SIZE_CONF_VAR, AI_BLOB_MAX_SIZE_VALUE))) {
+                    props.put(input.getName(), Tensor.image(convertImageBlob(rendition)));
+                } else {
+                    return null;
+                }
+                break;
+            case TEXT_TYPE:
+                Serializable propVal = getPropertyValue(doc, input.getName());
+                if (propVal instanceof Blob) {
+                    String text = convertTextBlob(getPropertyValue(doc, input.getName(), Blob.class));
+                    props.put(input.getName(), Tensor.text(text));
+                } else {
+                    String val = getPropertyValue(doc, input.getName(), String.class);
+                    props.put(input.getName(), Tensor.text(val));
+                }
+                break;
+            case CATEGORY_TYPE:
+                String categories = getPropertyValue(doc, input.getName(), String.class);
+                if (isNotEmpty(categories)) {
+                    props.put(input.getName(), Tensor.category(categories.split(LIST_DELIMITER_PATTERN)));
+                }
+                break;
+            default:
+                // default to text String
+                props.put(input.getName(), Tensor.text(getPropertyValue(doc, input.getName(), String.class)));
             }
-            return predict(doc.getCoreSession(), props, repoName, docId);
-        } finally {
-            preConversionTime.stop();
         }
+        return props;
     }
 
     public Collection<EnrichmentMetadata> enrich(BlobTextFromDocument blobtext) {
+        return enrich(singletonList(blobtext)).get(0);
+    }
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public List<Collection<EnrichmentMetadata>> enrich(List<BlobTextFromDocument> blobTexts) {
+        List<Collection<EnrichmentMetadata>> results = new ArrayList<>(blobTexts.size());
+        Map<String, List<Integer>> positionsByRepository = new HashMap<>();
+        for (int i = 0; i < blobTexts.size(); i++) {
+            results.add(emptyList());
+            positionsByRepository.computeIfAbsent(blobTexts.get(i).getRepositoryName(), k -> new ArrayList<>())
+                                 .add(i);
+        }
+        positionsByRepository.forEach((repositoryName, positions) -> {
+            CoreSession session = CoreInstance.getCoreSessionSystem(repositoryName);
+            List<Integer> predictable = new ArrayList<>(positions.size());
+            List<Map<String, Tensor>> instances = new ArrayList<>(positions.size());
+            List<String> docIds = new ArrayList<>(positions.size());
+            for (Integer position : positions) {
+                BlobTextFromDocument blobtext = blobTexts.get(position);
+                Map<String, Tensor> inputProperties = toTensors(blobtext, session);
+                if (inputProperties == null) {
+                    continue;
+                }
+                if (inputProperties.isEmpty()) {
+                    log.warn(String.format("(%s) unable to suggest doc properties for doc %s", getName(),
+                            blobtext.getId()));
+                } else {
+                    predictable.add(position);
+                    instances.add(inputProperties);
+                    docIds.add(blobtext.getId());
+                }
+            }
+            if (!predictable.isEmpty()) {
+                List<EnrichmentMetadata> suggestions = predict(session, instances, repositoryName, docIds);
+                for (int i = 0; i < suggestions.size(); i++) {
+                    EnrichmentMetadata suggestion = suggestions.get(i);
+                    if (suggestion != null && !suggestion.getLabels().isEmpty()) {
+                        results.set(predictable.get(i), singletonList(suggestion));
+                    }
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Converts the blob text to the model input tensors, returns null if the blob can't be predicted.
+     */
+    protected Map<String, Tensor> toTensors(BlobTextFromDocument blobtext, CoreSession session) {
         Map<String, Tensor> inputProperties = new HashMap<>();
-        CoreSession session = CoreInstance.getCoreSessionSystem(blobtext.getRepositoryName());
         for (Map.Entry<PropertyType, ManagedBlob> blobEntry : blobtext.computePropertyBlobs().entrySet()) {
             if (IMAGE_TYPE.equals(blobEntry.getKey().getType())) {
                 ManagedBlob blob = blobEntry.getValue();
                 if (blob == null) {
-                    return emptyList();
+                    return null;
                 }
                 Blob rendition = blob;
                 try {
@@ -322,7 +492,7 @@ public class TFRuntimeModel extends AbstractRuntimeModel implements EnrichmentPr
                         Framework.getProperty(AI_BLOB_MAX_SIZE_CONF_VAR, AI_BLOB_MAX_SIZE_VALUE))) {
                     inputProperties.put(blobEntry.getKey().getName(), Tensor.image(convertImageBlob(rendition)));
                 } else {
-                    return emptyList();
+                    return null;
                 }
             } else if (TEXT_TYPE.equals(blobEntry.getKey().getType())) {
                 inputProperties.put(blobEntry.getKey().getName(), Tensor.text(convertTextBlob(blobEntry.getValue())));
@@ -340,15 +510,6 @@ public class TFRuntimeModel extends AbstractRuntimeModel implements EnrichmentPr
             }
         }
 
-        if (inputProperties.isEmpty()) {
-            log.warn(String.format("(%s) unable to suggest doc properties for doc %s", getName(), blobtext.getId()));
-        } else {
-            EnrichmentMetadata suggestion = predict(session, inputProperties, blobtext.getRepositoryName(),
-                    blobtext.getId());
-            if (suggestion != null && !suggestion.getLabels().isEmpty()) {
-                return singletonList(suggestion);
-            }
-        }
-        return emptyList();
+        return inputProperties;
     }
 }
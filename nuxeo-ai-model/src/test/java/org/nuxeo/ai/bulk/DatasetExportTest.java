@@ -22,6 +22,7 @@ import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options
 import static java.util.stream.Collectors.groupingBy;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.nuxeo.ai.adapters.DatasetExport.DATASET_EXPORT_CORPORA_ID;
@@ -68,6 +69,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
@@ -78,9 +80,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.ai.enrichment.EnrichmentTestFeature;
+import org.nuxeo.ai.model.analyzis.DatasetStatsAggregator;
 import org.nuxeo.ai.model.analyzis.DatasetStatsService;
 import org.nuxeo.ai.model.export.DatasetExportService;
 import org.nuxeo.ai.model.export.DatasetStatsOperation;
+import org.nuxeo.ai.sdk.objects.Bucket;
 import org.nuxeo.ai.sdk.objects.FieldStatistics;
 import org.nuxeo.ai.sdk.objects.PropertyType;
 import org.nuxeo.ai.sdk.objects.Statistic;
@@ -568,6 +572,93 @@ public class DatasetExportTest {
         assertEquals(50, missingContent.getNumericValue().intValue());
     }
 
+    @Test
+    public void shouldSplitDeterministically() {
+        int total = 10_000_000;
+        long before = usedHeap();
+        long training = 0;
+        long trainingOfOdds = 0;
+        for (int i = 0; i < total; i++) {
+            if (ExportHelper.isTraining("doc-" + i, 75)) {
+                training++;
+                if (i % 2 == 1) {
+                    trainingOfOdds++;
+                }
+            }
+        }
+        // the ids are streamed, nothing is retained whatever the number of ids
+        assertThat(usedHeap() - before).isLessThan(64L * 1024 * 1024);
+        assertThat(training).isBetween(7_490_000L, 7_510_000L);
+        assertThat(trainingOfOdds).isBetween(3_740_000L, 3_760_000L);
+
+        for (int i = 0; i < 1000; i++) {
+            String id = UUID.randomUUID().toString();
+            assertEquals(ExportHelper.isTraining(id, 75), ExportHelper.isTraining(id, 75));
+            assertTrue("A training document stays in training when the split grows",
+                    !ExportHelper.isTraining(id, 50) || ExportHelper.isTraining(id, 75));
+        }
+        assertFalse(ExportHelper.isTraining("doc-0", 0));
+        assertTrue(ExportHelper.isTraining("doc-0", 100));
+    }
+
+    protected long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void shouldComputeSameStatsAsElasticsearch() throws Exception {
+        DocumentModel testRoot = session.getDocument(new PathRef(TEST_DIR_PATH));
+        waitForCompletion();
+
+        Set<PropertyType> input = Sets.newHashSet(new PropertyType("dc:title", CATEGORY_TYPE),
+                new PropertyType("file:content", IMAGE_TYPE));
+        Set<PropertyType> output = Sets.newHashSet(new PropertyType("dc:description", CATEGORY_TYPE),
+                new PropertyType("dc:language", CATEGORY_TYPE), new PropertyType("dc:subjects", CATEGORY_TYPE));
+
+        String nxql = String.format("SELECT * from Document where ecm:parentId='%s'", testRoot.getId());
+        Collection<Statistic> expected = Framework.getService(DatasetStatsService.class)
+                                                  .getStatistics(session, nxql, input, output);
+
+        List<PropertyType> features = new ArrayList<>(input);
+        features.addAll(output);
+        // aggregate the documents by batches and merge them, like the export does
+        DatasetStatsAggregator merged = new DatasetStatsAggregator(features);
+        DocumentModelList docs = session.query(nxql);
+        for (int i = 0; i < docs.size(); i += 100) {
+            DatasetStatsAggregator batch = new DatasetStatsAggregator(features);
+            docs.subList(i, Math.min(i + 100, docs.size())).forEach(batch::accept);
+            merged.merge(batch);
+        }
+        Collection<Statistic> actual = merged.getStatistics();
+
+        assertEquals(expected.size(), actual.size());
+        Map<String, Statistic> actualById = actual.stream()
+                                                  .collect(Collectors.toMap(Statistic::getId, stat -> stat));
+        for (Statistic stat : expected) {
+            Statistic local = actualById.get(stat.getId());
+            assertNotNull("Missing statistic " + stat.getId(), local);
+            assertEquals(stat.getField(), local.getField());
+            assertEquals(stat.getType(), local.getType());
+            assertEquals(stat.getAggType(), local.getAggType());
+            if (stat.getNumericValue() == null) {
+                assertThat(local.getNumericValue()).isNull();
+            } else {
+                assertEquals(stat.getId(), stat.getNumericValue().doubleValue(),
+                        local.getNumericValue().doubleValue(), 0);
+            }
+            assertEquals(stat.getId(), toTerms(stat.getValue()), toTerms(local.getValue()));
+        }
+    }
+
+    protected List<String> toTerms(List<Bucket> buckets) {
+        if (buckets == null) {
+            return null;
+        }
+        return buckets.stream().map(b -> b.getKey() + "=" + b.getDocCount()).collect(Collectors.toList());
+    }
+
     @Test
     public void shouldGetStatisticsOnAllProp() {
         String nxql = "SELECT * FROM Document WHERE ecm:primaryType = 'File'";
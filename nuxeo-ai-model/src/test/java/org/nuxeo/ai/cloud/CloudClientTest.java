@@ -18,6 +18,11 @@
  */
 package org.nuxeo.ai.cloud;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
@@ -84,6 +89,7 @@ import com.auth0.jwt.interfaces.DecodedJWT;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.extension.responsetemplating.ResponseTemplateTransformer;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
 
 @RunWith(FeaturesRunner.class)
 @Features({ PlatformFeature.class, AutomationFeature.class })
@@ -166,6 +172,42 @@ public class CloudClientTest {
         assertNull(client.uploadedDataset(testDocument()));
     }
 
+    @Test
+    @Deploy("org.nuxeo.ai.ai-model:OSGI-INF/cloud-client-test.xml")
+    public void shouldResumeInterruptedUpload() throws IOException {
+        DocumentModel doc = testDocument();
+        String batchUrl = "/api/v1/upload/batchId-160babc8-3345-4f09-8521/";
+        StubMapping failing = wireMockRule.stubFor(
+                post(urlEqualTo(batchUrl + "1")).willReturn(aResponse().withStatus(500)));
+        assertNull(client.uploadedDataset(doc));
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo(batchUrl + "0")));
+        wireMockRule.verify(3, postRequestedFor(urlEqualTo(batchUrl + "1")));
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo(batchUrl + "2")));
+
+        wireMockRule.removeStub(failing);
+        wireMockRule.resetRequests();
+        assertNotNull(client.uploadedDataset(doc));
+        // only the evaluation data is uploaded again
+        wireMockRule.verify(0, postRequestedFor(urlEqualTo(batchUrl + "0")));
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo(batchUrl + "1")));
+        wireMockRule.verify(0, postRequestedFor(urlEqualTo(batchUrl + "2")));
+
+        // the manifest is cleared once the dataset is attached
+        wireMockRule.resetRequests();
+        assertNotNull(client.uploadedDataset(doc));
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo(batchUrl + "0")));
+
+        // and when the attach fails, the batches may be stale
+        StubMapping failingAttach = wireMockRule.stubFor(
+                post(urlMatching("/api/v1/ai_export/attach/mockTestProject/.*")).willReturn(
+                        aResponse().withStatus(500)));
+        wireMockRule.resetRequests();
+        assertNull(client.uploadedDataset(doc));
+        wireMockRule.removeStub(failingAttach);
+        assertNotNull(client.uploadedDataset(doc));
+        wireMockRule.verify(2, postRequestedFor(urlEqualTo(batchUrl + "0")));
+    }
+
     protected DocumentModel testDocument() throws IOException {
         ManagedBlob managedBlob = createTestBlob(manager);
 
@@ -18,11 +18,18 @@
  */
 package org.nuxeo.ai.model.serving;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.matchingJsonPath;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singleton;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
 import static junit.framework.TestCase.assertNotNull;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.nuxeo.ai.enrichment.EnrichmentTestFeature.blobTestImage;
 import static org.nuxeo.ai.model.AIModel.MODEL_NAME;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.AI_BLOB_MAX_SIZE_CONF_VAR;
@@ -35,14 +42,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import javax.inject.Inject;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.ai.enrichment.EnrichingStreamProcessor;
 import org.nuxeo.ai.enrichment.EnrichmentMetadata;
 import org.nuxeo.ai.enrichment.EnrichmentProvider;
 import org.nuxeo.ai.enrichment.EnrichmentTestFeature;
@@ -54,6 +72,7 @@ import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.blob.BlobManager;
 import org.nuxeo.ecm.core.blob.BlobMetaImpl;
 import org.nuxeo.ecm.core.blob.BlobProvider;
@@ -64,11 +83,15 @@ import org.nuxeo.ecm.core.io.registry.MarshallerRegistry;
 import org.nuxeo.ecm.core.transientstore.api.TransientStore;
 import org.nuxeo.ecm.core.transientstore.api.TransientStoreService;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.lib.stream.computation.ComputationMetadata;
+import org.nuxeo.lib.stream.computation.ComputationMetadataMapping;
+import org.nuxeo.lib.stream.computation.internals.ComputationContextImpl;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.TransactionalFeature;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 
@@ -244,6 +267,171 @@ public class TestModelServing {
         assertEquals(1, inputs.size());
     }
 
+    @Test
+    @Deploy("org.nuxeo.ai.ai-model:OSGI-INF/cloud-client-test.xml")
+    @Deploy("org.nuxeo.ai.ai-model:OSGI-INF/model-serving-batch-test.xml")
+    public void testBatchedPrediction() {
+        DocumentModel doc1 = session.createDocumentModel("/", "Batch Doc 1", "BatchDoc");
+        doc1.setPropertyValue("dc:title", "first");
+        doc1 = session.createDocument(doc1);
+        DocumentModel doc2 = session.createDocumentModel("/", "Batch Doc 2", "BatchDoc");
+        doc2.setPropertyValue("dc:title", "second");
+        doc2 = session.createDocument(doc2);
+        txFeature.nextTransaction();
+        String predictPath = "/api/v1/ai/mockTestProject/model/mockBatchModel/dev/predict";
+
+        // A single call for the batch, the same document twice gets a result per position
+        EnrichmentProvider provider = aiComponent.getEnrichmentProvider("insight.customModel");
+        List<Collection<EnrichmentMetadata>> results = provider.enrich(
+                Arrays.asList(toBlobText(doc1), toBlobText(doc2), toBlobText(doc1)));
+        wireMockRule.verify(1, postRequestedFor(urlPathEqualTo(predictPath)));
+        assertEquals(3, results.size());
+        assertEquals("alpha", getFirstLabel(results.get(0)));
+        assertEquals("beta", getFirstLabel(results.get(1)));
+        assertEquals("gamma", getFirstLabel(results.get(2)));
+        assertEquals(doc1.getId(), results.get(2).iterator().next().context.documentRef);
+
+        // A response that doesn't match the batch falls back to a call per document
+        wireMockRule.resetRequests();
+        ComputationContextImpl context = new ComputationContextImpl(new ComputationMetadataMapping(
+                new ComputationMetadata("batchInsight", singleton("i1"), singleton("o1")), emptyMap()));
+        EnrichingStreamProcessor.EnrichmentComputation computation = new EnrichingStreamProcessor.EnrichmentComputation(
+                1, "batchInsight", "insight.customModel",
+                new EnrichingStreamProcessor.EnrichmentMetrics("batchInsight"), false, 2, 500, 1);
+        computation.init(context);
+        computation.processRecord(context, null, toRecord("k", toBlobText(doc1)));
+        computation.processRecord(context, null, toRecord("k", toBlobText(doc2)));
+        wireMockRule.verify(3, postRequestedFor(urlPathEqualTo(predictPath)));
+        wireMockRule.verify(1,
+                postRequestedFor(urlPathEqualTo(predictPath)).withRequestBody(matchingJsonPath("$.docIds[1]")));
+        assertEquals(2, context.getRecords("o1").size());
+    }
+
+    protected BlobTextFromDocument toBlobText(DocumentModel doc) {
+        BlobTextFromDocument blobText = new BlobTextFromDocument(doc.getId(), doc.getRepositoryName(),
+                doc.getParentRef().toString(), doc.getType(), doc.getFacets());
+        blobText.addProperty("dc:title", (String) doc.getPropertyValue("dc:title"));
+        return blobText;
+    }
+
+    protected String getFirstLabel(Collection<EnrichmentMetadata> metadata) {
+        return metadata.iterator().next().getLabels().get(0).getValues().get(0).getName();
+    }
+
+    @Test
+    public void testBatchedResponse() throws IOException {
+        TFRuntimeModel model = (TFRuntimeModel) modelServingService.getModel("xyz");
+        String labels = "\"dc:nature_labels\": [\"report\", \"LOC\"]";
+        String response = "{\"results\": [" //
+                + "{\"output_names\": [\"dc:nature\"], \"dc:nature\": [0.9, 0.1], " + labels + "}," //
+                + "{\"output_names\": [\"dc:nature\"], \"dc:nature\": [0.0, 0.0], " + labels + "}," //
+                + "{\"output_names\": [\"dc:nature\"], \"dc:nature\": [0.2, 0.8], " + labels + "}" //
+                + "]}";
+
+        List<EnrichmentMetadata> results = model.handlePredict(response, "test", Arrays.asList("d1", "d2", "d3"));
+        assertEquals(3, results.size());
+        assertEquals("d1", results.get(0).context.documentRef);
+        assertEquals("report", results.get(0).getLabels().get(0).getValues().get(0).getName());
+        assertNull("No label is above the confidence", results.get(1));
+        assertEquals("d3", results.get(2).context.documentRef);
+        assertEquals("LOC", results.get(2).getLabels().get(0).getValues().get(0).getName());
+
+        // The same document twice gets a result per position
+        results = model.handlePredict(response, "test", Arrays.asList("d1", "d1", "d3"));
+        assertEquals("d1", results.get(0).context.documentRef);
+        assertNull(results.get(1));
+        assertEquals("d3", results.get(2).context.documentRef);
+
+        // The request keeps the id of each instance
+        JsonNode request = JacksonUtil.MAPPER.readTree(model.prepareRequest(
+                new BatchTensorInstances(Arrays.asList("d1", "d1"), Arrays.asList(Map.of(), Map.of()))));
+        assertEquals(2, request.get("docIds").size());
+        assertEquals("d1", request.get("docIds").get(1).asText());
+
+        try {
+            model.handlePredict(response, "test", Arrays.asList("d1", "d2"));
+            fail("A response that doesn't match the documents must be rejected");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage().contains("returned 3 results for 2 documents"));
+        }
+    }
+
+    @Test
+    public void testParallelModels() {
+        ModelServingServiceImpl service = (ModelServingServiceImpl) modelServingService;
+        long timeout = service.predictTimeout;
+        ExecutorService executor = service.predictExecutor;
+        service.predictTimeout = 500;
+        // the models are called by the caller by default
+        service.predictExecutor = Executors.newFixedThreadPool(3);
+        try {
+            Map<String, Supplier<String>> calls = new LinkedHashMap<>();
+            calls.put("slowModel", () -> {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "slow";
+            });
+            calls.put("fastModel1", () -> "fast1");
+            calls.put("fastModel2", () -> "fast2");
+
+            long start = System.currentTimeMillis();
+            Map<String, String> results = service.invokeModels(calls);
+            assertTrue("The slow model must not hold the others", System.currentTimeMillis() - start < 5_000);
+            assertEquals(Arrays.asList("fastModel1", "fastModel2"), new ArrayList<>(results.keySet()));
+            assertEquals("fast1", results.get("fastModel1"));
+            assertEquals(1, aiComponent.getMetrics().getModelPredictionTime("fastModel1").getCount());
+        } finally {
+            service.predictExecutor.shutdownNow();
+            service.predictExecutor = executor;
+            service.predictTimeout = timeout;
+        }
+    }
+
+    @Test
+    public void testConcurrentReload() throws Exception {
+        ModelServingServiceImpl service = (ModelServingServiceImpl) modelServingService;
+        List<ModelDescriptor> descriptors = new ArrayList<>(service.listModels());
+        DocumentModel testDoc = session.createDocumentModel("/", "My Reloaded Doc", "FileRefDoc");
+        testDoc.setPropertyValue("dc:title", "My document title");
+
+        AtomicBoolean reloading = new AtomicBoolean(true);
+        AtomicInteger lookups = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            readers.add(executor.submit(() -> {
+                while (reloading.get()) {
+                    assertNotNull("A reload must never hide a model", service.getModel("xyz"));
+                    assertNotNull(service.getPredicate("xyz"));
+                    assertEquals(2, service.getGroupedInputs(testDoc).size());
+                    lookups.incrementAndGet();
+                }
+            }));
+        }
+        Future<?> writer = executor.submit(() -> {
+            try {
+                TransactionHelper.runInTransaction(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        service.replaceModels(descriptors);
+                        service.reload(descriptors.get(i % descriptors.size()));
+                    }
+                });
+            } finally {
+                reloading.set(false);
+            }
+        });
+        writer.get(1, TimeUnit.MINUTES);
+        for (Future<?> reader : readers) {
+            reader.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        assertTrue(lookups.get() > 0);
+        assertEquals(descriptors.size(), service.listModels().size());
+    }
+
     @Test
     public void testDocumentEnricher() throws IOException {
         DocumentModelJsonWriter writer = registry.getInstance(enrichDoc(ModelJsonEnricher.NAME).get(),
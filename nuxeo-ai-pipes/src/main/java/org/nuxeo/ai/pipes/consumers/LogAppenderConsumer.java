@@ -18,29 +18,199 @@
  */
 package org.nuxeo.ai.pipes.consumers;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.lib.stream.computation.Record;
 import org.nuxeo.lib.stream.log.LogAppender;
 import org.nuxeo.lib.stream.log.internals.CloseableLogAppender;
+import org.nuxeo.runtime.metrics.MetricsService;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+import io.dropwizard.metrics5.Timer;
 
 /**
- * A record consumer using a log appender
+ * A record consumer using a log appender.
+ * <p>
+ * When created with a buffer capacity, records are kept in a bounded buffer and appended in batches by a background
+ * thread. Records accepted within a transaction only reach the buffer once the transaction is committed, they are
+ * discarded on rollback. When the buffer is full the caller flushes it. A record that fails to be appended is kept,
+ * with the records after it, and appended first by the next flush; a flush on the caller thread rethrows the failure.
+ * Records can't be accepted once the consumer is closed.
  */
 public class LogAppenderConsumer implements Consumer<Record>, AutoCloseable {
 
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 200;
+
     private static final Log log = LogFactory.getLog(LogAppenderConsumer.class);
 
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
     private final CloseableLogAppender<Record> appender;
 
+    protected final BlockingQueue<Record> queue;
+
+    protected final int batchSize;
+
+    protected final ScheduledExecutorService flusher;
+
+    protected final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    protected final ThreadLocal<PendingRecords> pending = new ThreadLocal<>();
+
+    /**
+     * The records of a failed flush, appended first by the next flush, guarded by this.
+     */
+    protected final List<Record> unappended = new ArrayList<>();
+
+    protected volatile int unappendedCount;
+
+    protected volatile boolean closed;
+
+    protected Timer appendTime;
+
     public LogAppenderConsumer(CloseableLogAppender<Record> appender) {
+        this(appender, 0, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates a buffered consumer, a capacity of 0 appends each record on the caller thread.
+     */
+    public LogAppenderConsumer(CloseableLogAppender<Record> appender, int capacity, int batchSize,
+            long flushInterval) {
         this.appender = appender;
+        this.batchSize = batchSize;
+        if (capacity > 0) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.flusher = Executors.newSingleThreadScheduledExecutor(
+                    new BasicThreadFactory.Builder().namingPattern("ai-pipes-append-%d").daemon(true).build());
+            flusher.scheduleWithFixedDelay(this::flushInBackground, flushInterval, flushInterval, MILLISECONDS);
+        } else {
+            this.queue = null;
+            this.flusher = null;
+        }
     }
 
     @Override
     public void accept(Record record) {
-        if (record != null) {
+        if (record == null) {
+            return;
+        }
+        if (queue == null) {
+            append(record);
+        } else if (TransactionHelper.isTransactionActive()) {
+            getPendingRecords().records.add(record);
+        } else {
+            enqueue(record);
+        }
+    }
+
+    /**
+     * Gets the records of the current transaction, registering them to be buffered after commit.
+     */
+    protected PendingRecords getPendingRecords() {
+        PendingRecords records = pending.get();
+        if (records == null || records.completed) {
+            records = new PendingRecords();
+            TransactionHelper.registerSynchronization(records);
+            pending.set(records);
+        }
+        return records;
+    }
+
+    protected void enqueue(Record record) {
+        if (closed) {
+            throw new IllegalStateException(
+                    "Unable to accept record " + record.getKey() + ", the consumer of " + appender.name()
+                            + " is closed");
+        }
+        while (!queue.offer(record)) {
+            // The buffer is full, append on the caller thread to apply back pressure
+            flush();
+        }
+        if (queue.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushRequested.set(false);
+                    flushInBackground();
+                });
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Appends all the buffered records, starting with the records of a previous failed flush.
+     *
+     * @throws RuntimeException the append failure, the failed record and the ones after it are kept for the next flush
+     */
+    public synchronized void flush() {
+        if (queue == null) {
+            return;
+        }
+        List<Record> batch = new ArrayList<>(unappended);
+        unappended.clear();
+        unappendedCount = 0;
+        while (!batch.isEmpty() || queue.drainTo(batch, batchSize) > 0) {
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    append(batch.get(i));
+                } catch (RuntimeException e) {
+                    unappended.addAll(batch.subList(i, batch.size()));
+                    unappendedCount = unappended.size();
+                    throw e;
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Flushes on the background thread, a failure is retried by the next scheduled flush.
+     */
+    protected void flushInBackground() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("Unable to append to " + appender.name() + ", " + size() + " records are kept for the next flush",
+                    e);
+        }
+    }
+
+    /**
+     * Gets the number of records waiting to be appended.
+     */
+    public int size() {
+        return queue == null ? 0 : queue.size() + unappendedCount;
+    }
+
+    protected void append(Record record) {
+        if (appendTime == null) {
+            getAppender().append(record.getKey(), record);
+            return;
+        }
+        try (Timer.Context ignored = appendTime.time()) {
             getAppender().append(record.getKey(), record);
         }
     }
@@ -52,18 +222,101 @@ public class LogAppenderConsumer implements Consumer<Record>, AutoCloseable {
         return appender;
     }
 
+    /**
+     * Registers the queue depth gauge and the append latency timer within the shared registry.
+     */
+    public void register() {
+        String name = getMetricsName();
+        registry.remove(MetricRegistry.name(name, "queueDepth"));
+        registry.register(MetricRegistry.name(name, "queueDepth"), (Gauge<Integer>) this::size);
+        appendTime = registry.timer(MetricRegistry.name(name, "appendTime"));
+    }
+
+    /**
+     * Removes the metrics from the shared registry.
+     */
+    public void unregister() {
+        String name = getMetricsName();
+        registry.removeMatching((metricName, metric) -> metricName.toString().startsWith(name));
+        appendTime = null;
+    }
+
+    protected String getMetricsName() {
+        return MetricRegistry.name("nuxeo.ai", "streams", "appender", String.valueOf(appender.name())).toString();
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("LogAppenderConsumer{");
         sb.append("appender=").append(appender);
+        sb.append(", buffered=").append(queue != null);
         sb.append('}');
         return sb.toString();
     }
 
     @Override
     public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+                    log.warn("Append flush did not complete in time for " + appender.name());
+                    flusher.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                flusher.shutdownNow();
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Unable to append " + size() + " records to " + appender.name() + " on close", e);
+            }
+        }
         if (appender != null) {
             appender.close();
         }
     }
+
+    /**
+     * The records accepted within a transaction, buffered once it is committed.
+     */
+    protected class PendingRecords implements Synchronization {
+
+        protected final List<Record> records = new ArrayList<>();
+
+        protected volatile boolean completed;
+
+        @Override
+        public void beforeCompletion() {
+            // nothing to do
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            completed = true;
+            if (pending.get() == this) {
+                pending.remove();
+            }
+            if (status == Status.STATUS_COMMITTED) {
+                for (int i = 0; i < records.size(); i++) {
+                    try {
+                        enqueue(records.get(i));
+                    } catch (RuntimeException e) {
+                        log.error("Unable to buffer " + (records.size() - i)
+                                + " records of a committed transaction for " + appender.name(), e);
+                        break;
+                    }
+                }
+            } else if (log.isDebugEnabled()) {
+                log.debug("Discarding " + records.size() + " records of a rolled back transaction for "
+                        + appender.name());
+            }
+            records.clear();
+        }
+    }
 }
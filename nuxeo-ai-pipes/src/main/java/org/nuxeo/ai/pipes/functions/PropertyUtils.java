@@ -20,10 +20,15 @@ package org.nuxeo.ai.pipes.functions;
 
 import static org.nuxeo.ecm.core.api.AbstractSession.BINARY_TEXT_SYS_PROP;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Map;
@@ -33,7 +38,8 @@ import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ai.pipes.types.BlobTextFromDocument;
@@ -127,7 +133,10 @@ public class PropertyUtils {
     public static String base64EncodeBlob(Blob blob) {
         try {
             if (blob != null) {
-                return Base64.encodeBase64String(blob.getByteArray());
+                // Only the encoded form is held in memory, the blob bytes are streamed
+                ByteArrayOutputStream out = new ByteArrayOutputStream(base64Length(blob.getLength()));
+                base64EncodeBlob(blob, out);
+                return out.toString(StandardCharsets.ISO_8859_1);
             }
         } catch (IOException ioe) {
             log.warn("Failed to convert a blob to a String", ioe);
@@ -135,6 +144,22 @@ public class PropertyUtils {
         return null;
     }
 
+    /**
+     * Base64 encode the blob bytes straight into the output stream, using a constant amount of memory whatever the
+     * blob size. The output stream is left open.
+     */
+    public static void base64EncodeBlob(Blob blob, OutputStream out) throws IOException {
+        try (InputStream in = blob.getStream();
+                OutputStream encoder = Base64.getEncoder().wrap(new CloseShieldOutputStream(out))) {
+            IOUtils.copy(in, encoder);
+        }
+    }
+
+    protected static int base64Length(long length) {
+        long encoded = 4 * ((length + 2) / 3);
+        return length < 0 || encoded > Integer.MAX_VALUE - 8 ? 32 : (int) encoded;
+    }
+
     /**
      * Get a property value. Also handles 'ecm:' property types Returns null if not found.
      */
@@ -218,7 +243,6 @@ public class PropertyUtils {
     public static BlobTextFromDocument docSerialize(DocumentModel doc, Set<PropertyType> propertiesList,
             boolean strict) {
         BlobTextFromDocument blobTextFromDoc = new BlobTextFromDocument(doc);
-        Map<String, String> properties = blobTextFromDoc.getProperties();
         propertiesList.forEach(propName -> {
             Serializable propVal = getPropertyValue(doc, propName.getName());
             if (propVal instanceof ManagedBlob) {
@@ -236,15 +260,15 @@ public class PropertyUtils {
                 }
             } else if (propVal != null) {
                 if (propVal.getClass().isArray()) {
-                    properties.put(propName.getName(), serializeArray(propVal));
+                    blobTextFromDoc.addProperty(propName.getName(), serializeArray(propVal));
                 } else {
-                    properties.put(propName.getName(), sanitize(propVal.toString()));
+                    blobTextFromDoc.addProperty(propName.getName(), sanitize(propVal.toString()));
                 }
             }
 
         });
 
-        if (log.isDebugEnabled() && properties.size() + blobTextFromDoc.getBlobs().size() != propertiesList.size()) {
+        if (log.isDebugEnabled() && blobTextFromDoc.getProperties().size() + blobTextFromDoc.getBlobs().size() != propertiesList.size()) {
             log.debug(String.format("Document %s one of the following properties is null. %s", doc.getId(),
                     propertiesList));
         }
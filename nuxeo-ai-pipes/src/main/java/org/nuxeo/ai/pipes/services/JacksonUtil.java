@@ -142,14 +142,21 @@ public class JacksonUtil {
         @Override
         public void serialize(ManagedBlob blob, JsonGenerator jg, SerializerProvider serializers) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("mimeType", blob.getMimeType());
-            jg.writeStringField("encoding", blob.getEncoding());
-            jg.writeStringField("digest", blob.getDigest());
-            jg.writeStringField("providerId", blob.getProviderId());
-            jg.writeStringField("key", blob.getKey());
+            writeNonNullField(jg, "mimeType", blob.getMimeType());
+            writeNonNullField(jg, "encoding", blob.getEncoding());
+            writeNonNullField(jg, "digest", blob.getDigest());
+            writeNonNullField(jg, "providerId", blob.getProviderId());
+            writeNonNullField(jg, "key", blob.getKey());
             jg.writeNumberField("length", blob.getLength());
             jg.writeEndObject();
         }
+
+        // Null fields are left out, like the other fields of the records, to keep them small
+        protected void writeNonNullField(JsonGenerator jg, String name, String value) throws IOException {
+            if (value != null) {
+                jg.writeStringField(name, value);
+            }
+        }
     }
 
     /**
@@ -62,6 +62,12 @@ public class PipelineServiceImpl extends DefaultComponent implements PipelineSer
 
     public static final String PIPES_CONFIG = "nuxeo.ai.stream.config.name";
 
+    public static final String APPENDER_BUFFER_CAPACITY = "nuxeo.ai.pipes.appender.buffer.capacity";
+
+    public static final String APPENDER_BUFFER_BATCH_SIZE = "nuxeo.ai.pipes.appender.buffer.batchSize";
+
+    public static final String APPENDER_BUFFER_FLUSH_INTERVAL = "nuxeo.ai.pipes.appender.buffer.flushInterval.ms";
+
     private static final Log log = LogFactory.getLog(PipelineServiceImpl.class);
 
     protected final Map<String, PipeDescriptor> configs = new HashMap<>();
@@ -108,7 +114,11 @@ public class PipelineServiceImpl extends DefaultComponent implements PipelineSer
         EventService eventService = Framework.getService(EventService.class);
         listenerDescriptors.forEach(eventService::removeEventListener);
 
-        logAppenderConsumers.values().forEach(LogAppenderConsumer::close);
+        logAppenderConsumers.values().forEach(consumer -> {
+            consumer.close();
+            consumer.unregister();
+        });
+        logAppenderConsumers.clear();
     }
 
     /**
@@ -194,14 +204,25 @@ public class PipelineServiceImpl extends DefaultComponent implements PipelineSer
     }
 
     /**
-     * Create a <code>LogAppenderConsumer</code> for the specified log/stream</code>
+     * Create a <code>LogAppenderConsumer</code> for the specified log/stream</code>, the consumer is shared by all
+     * the pipes sending to this log so they use a single buffer.
      */
     protected LogAppenderConsumer addLogConsumer(String logName, int size) {
+        LogAppenderConsumer existing = logAppenderConsumers.get(logName);
+        if (existing != null) {
+            return existing;
+        }
         LogManager manager = Framework.getService(StreamService.class).getLogManager();
         Name log = Name.ofUrn(logName);
         manager.createIfNotExists(log, size);
         CloseableLogAppender<Record> appender = (CloseableLogAppender) manager.getAppender(log);
-        LogAppenderConsumer consumer = new LogAppenderConsumer(appender);
+        LogAppenderConsumer consumer = new LogAppenderConsumer(appender,
+                Integer.parseInt(Framework.getProperty(APPENDER_BUFFER_CAPACITY, "0")),
+                Integer.parseInt(Framework.getProperty(APPENDER_BUFFER_BATCH_SIZE,
+                        String.valueOf(LogAppenderConsumer.DEFAULT_BATCH_SIZE))),
+                Long.parseLong(Framework.getProperty(APPENDER_BUFFER_FLUSH_INTERVAL,
+                        String.valueOf(LogAppenderConsumer.DEFAULT_FLUSH_INTERVAL))));
+        consumer.register();
         logAppenderConsumers.put(logName, consumer);
         return consumer;
     }
@@ -19,17 +19,23 @@
  */
 package org.nuxeo.ai.pipes.types;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.nuxeo.ai.sdk.objects.PropertyType;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.blob.ManagedBlob;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 /**
  * A POJO representation used to transfer data in a stream. The main subject of this class is usually either a blob or a
@@ -39,10 +45,13 @@ public class BlobTextFromDocument implements Partitionable, Serializable {
 
     private static final long serialVersionUID = 201920081233428L;
 
+    @JsonProperty
     private final Map<String, String> properties = new HashMap<>();
 
+    @JsonProperty
     private final Map<String, String> blobTypes = new HashMap<>();
 
+    @JsonProperty
     private final Map<String, ManagedBlob> blobs = new HashMap<>();
 
     private String id;
@@ -55,6 +64,10 @@ public class BlobTextFromDocument implements Partitionable, Serializable {
 
     private Set<String> facets;
 
+    private transient String contentHash;
+
+    private transient Map<PropertyType, ManagedBlob> propertyBlobs;
+
     public BlobTextFromDocument() {
     }
 
@@ -115,36 +128,85 @@ public class BlobTextFromDocument implements Partitionable, Serializable {
         this.facets = facets;
     }
 
+    /**
+     * Gets a read-only view of the blobs, use {@link #addBlob} to add a blob so the cached hash is reset.
+     */
     public Map<String, ManagedBlob> getBlobs() {
-        return blobs;
+        return Collections.unmodifiableMap(blobs);
     }
 
+    /**
+     * Gets a read-only view of the blob types, use {@link #addBlob} to add a blob so the cached hash is reset.
+     */
     public Map<String, String> getBlobTypes() {
-        return blobTypes;
+        return Collections.unmodifiableMap(blobTypes);
     }
 
+    /**
+     * Gets the blobs keyed by their property and type. The map is computed once and can't be modified, use
+     * {@link #addBlob} to add a blob.
+     */
     public Map<PropertyType, ManagedBlob> computePropertyBlobs() {
-        return blobs.entrySet()
-                    .stream()
-                    .collect(Collectors.toMap(b -> new PropertyType(b.getKey(), blobTypes.get(b.getKey())),
-                            Map.Entry::getValue));
+        if (propertyBlobs == null) {
+            if (blobs.isEmpty()) {
+                propertyBlobs = Collections.emptyMap();
+            } else if (blobs.size() == 1) {
+                Map.Entry<String, ManagedBlob> blob = blobs.entrySet().iterator().next();
+                propertyBlobs = Collections.singletonMap(new PropertyType(blob.getKey(), blobTypes.get(blob.getKey())),
+                        Objects.requireNonNull(blob.getValue()));
+            } else {
+                Map<PropertyType, ManagedBlob> computed = new HashMap<>((int) (blobs.size() / 0.75f) + 1);
+                blobs.forEach((name, blob) -> computed.put(new PropertyType(name, blobTypes.get(name)),
+                        Objects.requireNonNull(blob)));
+                propertyBlobs = Collections.unmodifiableMap(computed);
+            }
+        }
+        return propertyBlobs;
     }
 
     public void addBlob(String name, String type, ManagedBlob blob) {
         blobs.put(name, blob);
         blobTypes.put(name, type);
+        contentHash = null;
+        propertyBlobs = null;
     }
 
     public String getProperty(String name) {
         return properties.get(name);
     }
 
+    /**
+     * Gets a read-only view of the properties, use {@link #addProperty} to add a property so the cached hash is reset.
+     */
     public Map<String, String> getProperties() {
-        return properties;
+        return Collections.unmodifiableMap(properties);
     }
 
     public void addProperty(String name, String propVal) {
         properties.put(name, propVal);
+        contentHash = null;
+    }
+
+    /**
+     * A 128-bit Murmur3 hash, as hex, of the blob digests and the property values. It is computed once and can be
+     * shared by every provider to build its cache key.
+     */
+    @JsonIgnore
+    public String getContentHash() {
+        if (contentHash == null) {
+            Hasher hasher = Hashing.murmur3_128().newHasher();
+            new TreeMap<>(blobs).forEach((name, blob) -> {
+                hasher.putString(name, UTF_8).putByte((byte) 0);
+                hasher.putString(String.valueOf(blob.getDigest()), UTF_8).putByte((byte) 0);
+            });
+            hasher.putByte((byte) 1);
+            new TreeMap<>(properties).forEach((name, value) -> {
+                hasher.putString(name, UTF_8).putByte((byte) 0);
+                hasher.putString(String.valueOf(value), UTF_8).putByte((byte) 0);
+            });
+            contentHash = hasher.hash().toString();
+        }
+        return contentHash;
     }
 
     @Override
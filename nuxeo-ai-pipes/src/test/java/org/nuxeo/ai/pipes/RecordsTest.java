@@ -20,7 +20,10 @@ package org.nuxeo.ai.pipes;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.fail;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.nuxeo.ai.pipes.events.EventPipesTest.TEST_MIME_TYPE;
 import static org.nuxeo.ai.pipes.events.EventPipesTest.getTestEvent;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.MAPPER;
@@ -33,6 +36,7 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import org.apache.commons.logging.Log;
@@ -45,6 +49,7 @@ import org.nuxeo.ai.sdk.objects.PropertyType;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.blob.BlobMetaImpl;
 import org.nuxeo.ecm.core.blob.ManagedBlob;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
 import org.nuxeo.lib.stream.computation.Record;
@@ -94,6 +99,67 @@ public class RecordsTest {
         assertEquals(TEST_MIME_TYPE, blob.getMimeType());
     }
 
+    @Test
+    public void testBlobTextRoundTrip() {
+        BlobTextFromDocument blobText = new BlobTextFromDocument("docId", "test", "parentId", "File",
+                new HashSet<>(List.of("Versionable")));
+        blobText.addBlob("file:content", "img", new BlobMetaImpl("test", "image/jpeg", "xyz", "xyz", null, 36));
+        blobText.addProperty("dc:title", "My title");
+
+        Map<PropertyType, ManagedBlob> propertyBlobs = blobText.computePropertyBlobs();
+        assertSame("The property blobs must be computed once", propertyBlobs, blobText.computePropertyBlobs());
+        try {
+            propertyBlobs.clear();
+            fail("The property blobs must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        blobText.addBlob("file:other", "txt", new BlobMetaImpl("test", "text/plain", "abc", "abc", null, 12));
+        propertyBlobs = blobText.computePropertyBlobs();
+        assertEquals(2, propertyBlobs.size());
+        assertNotNull(propertyBlobs.get(new PropertyType("file:other", "txt")));
+
+        Record record = toRecord(blobText.getKey(), blobText);
+        assertFalse("Null blob fields must not be written", new String(record.getData()).contains("encoding"));
+        BlobTextFromDocument andBack = fromRecord(record, BlobTextFromDocument.class);
+        assertEquals(blobText, andBack);
+        assertEquals(propertyBlobs, andBack.computePropertyBlobs());
+
+        int iterations = 10_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            fromRecord(toRecord(blobText.getKey(), blobText), BlobTextFromDocument.class).computePropertyBlobs();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Round trip of a %d bytes record took %d ns", record.getData().length,
+                    (System.nanoTime() - start) / iterations));
+        }
+    }
+
+    @Test
+    public void testContentHashFollowsChanges() {
+        BlobTextFromDocument blobText = new BlobTextFromDocument("docId", "test", "parentId", "File", null);
+        blobText.addProperty("dc:title", "My title");
+        String hash = blobText.getContentHash();
+        assertEquals(hash, fromRecord(toRecord(blobText.getKey(), blobText), BlobTextFromDocument.class)
+                .getContentHash());
+
+        try {
+            blobText.getProperties().put("dc:title", "Other title");
+            fail("The properties must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(hash, blobText.getContentHash());
+
+        blobText.addProperty("dc:title", "Other title");
+        String titleHash = blobText.getContentHash();
+        assertNotEquals(hash, titleHash);
+
+        blobText.addBlob("file:content", "img", new BlobMetaImpl("test", "image/jpeg", "xyz", "xyz", null, 36));
+        assertNotEquals(titleHash, blobText.getContentHash());
+    }
+
     @Test(expected = NuxeoException.class)
     public void testToRecord() throws Exception {
         toRecord("akey", getTestEvent(session));
@@ -22,6 +22,7 @@ import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.fromRecord;
 import static org.nuxeo.ai.pipes.services.JacksonUtil.toRecord;
 
@@ -30,6 +31,10 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.inject.Inject;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -50,10 +55,17 @@ import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
 import org.nuxeo.ecm.core.event.impl.EventContextImpl;
 import org.nuxeo.ecm.core.event.impl.EventServiceImpl;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.lib.stream.computation.Record;
+import org.nuxeo.lib.stream.log.LogManager;
+import org.nuxeo.lib.stream.log.Name;
+import org.nuxeo.lib.stream.log.internals.CloseableLogAppender;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.metrics.NuxeoMetricSet;
+import org.nuxeo.runtime.stream.StreamService;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 import io.dropwizard.metrics5.Gauge;
 import io.dropwizard.metrics5.Metric;
@@ -114,6 +126,107 @@ public class EventPipesTest {
         assertNotNull("toString shouldn't throw a null pointer even if the appender is null", consumer.toString());
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBufferedConsumer() throws Exception {
+        LogManager manager = Framework.getService(StreamService.class).getLogManager();
+        Name logName = Name.ofUrn("test/buffered-appender");
+        Name group = Name.ofUrn("test/buffered-group");
+        manager.createIfNotExists(logName, 2);
+        CloseableLogAppender<Record> appender = (CloseableLogAppender<Record>) manager.<Record> getAppender(logName);
+        LogAppenderConsumer consumer = new LogAppenderConsumer(appender, 100, 10, 50);
+        consumer.register();
+        try {
+            // Records accepted in a transaction are only buffered on commit
+            for (int i = 0; i < 20; i++) {
+                consumer.accept(Record.of("tx" + i, null));
+            }
+            assertEquals(0, consumer.size());
+            assertEquals(0, manager.getLag(logName, group).lag());
+            TransactionHelper.commitOrRollbackTransaction();
+
+            // Records of a rolled back transaction are discarded
+            TransactionHelper.startTransaction();
+            consumer.accept(Record.of("rollback", null));
+            TransactionHelper.setTransactionRollbackOnly();
+            TransactionHelper.commitOrRollbackTransaction();
+
+            // Concurrent producers overflow the buffer and are throttled without losing records
+            int threads = 8;
+            int records = 2_000;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                String prefix = "thread" + t;
+                executor.execute(() -> {
+                    for (int i = 0; i < records; i++) {
+                        consumer.accept(Record.of(prefix + i, null));
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+            consumer.flush();
+            assertEquals(0, consumer.size());
+            assertEquals(20 + threads * records, manager.getLag(logName, group).lag());
+        } finally {
+            if (!TransactionHelper.isTransactionActive()) {
+                TransactionHelper.startTransaction();
+            }
+            consumer.close();
+            consumer.unregister();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBufferedConsumerKeepsFailedRecords() {
+        LogManager manager = Framework.getService(StreamService.class).getLogManager();
+        Name logName = Name.ofUrn("test/failing-appender");
+        Name group = Name.ofUrn("test/failing-group");
+        manager.createIfNotExists(logName, 1);
+        CloseableLogAppender<Record> appender = (CloseableLogAppender<Record>) manager.<Record> getAppender(logName);
+        AtomicBoolean failing = new AtomicBoolean(true);
+        LogAppenderConsumer consumer = new LogAppenderConsumer(appender, 100, 10, 60_000) {
+            @Override
+            protected void append(Record record) {
+                if (failing.get() && "fail".equals(record.getKey())) {
+                    throw new IllegalStateException("Append failure");
+                }
+                super.append(record);
+            }
+        };
+        TransactionHelper.commitOrRollbackTransaction();
+        try {
+            consumer.accept(Record.of("first", null));
+            consumer.accept(Record.of("fail", null));
+            consumer.accept(Record.of("last", null));
+            try {
+                consumer.flush();
+                fail("The append failure must be propagated");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertEquals("The failed record and the ones after it are kept", 2, consumer.size());
+            assertEquals(1, manager.getLag(logName, group).lag());
+
+            failing.set(false);
+            consumer.flush();
+            assertEquals(0, consumer.size());
+            assertEquals(3, manager.getLag(logName, group).lag());
+
+            consumer.close();
+            try {
+                consumer.accept(Record.of("closed", null));
+                fail("A closed consumer must reject records");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            TransactionHelper.startTransaction();
+            consumer.close();
+        }
+    }
+
     @Test
     public void testDocEventToStream() throws Exception {
         DocEventToStream doc2stream = new DocEventToStream();
@@ -23,6 +23,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
 import static org.nuxeo.ai.pipes.events.EventPipesTest.TEST_MIME_TYPE;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.FILE_CONTENT;
 import static org.nuxeo.ai.pipes.functions.PropertyUtils.IMAGE_TYPE;
@@ -33,10 +34,15 @@ import static org.nuxeo.ai.pipes.functions.PropertyUtils.notNull;
 import static org.nuxeo.ecm.core.storage.FulltextExtractorWork.SYSPROP_FULLTEXT_BINARY;
 
 import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
 import java.util.HashSet;
 import java.util.List;
@@ -51,6 +57,7 @@ import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.AbstractBlob;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.blob.ManagedBlob;
 import org.nuxeo.ecm.core.query.sql.NXQL;
@@ -138,6 +145,102 @@ public class PropertyUtilsTest {
         assertNull(base64EncodeBlob(textBlob));
     }
 
+    @Test
+    public void testStreamsBase64Encoding() throws IOException {
+        Blob blob = new GeneratedBlob(100_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        base64EncodeBlob(blob, out);
+        String encoded = out.toString("ISO-8859-1");
+        assertEquals(Base64.getEncoder().encodeToString(blob.getByteArray()), encoded);
+        assertEquals(encoded, base64EncodeBlob(blob));
+        assertEquals("", base64EncodeBlob(new GeneratedBlob(0)));
+    }
+
+    @Test
+    public void testBase64EncodingUsesConstantMemory() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        // Warm up so class loading isn't counted
+        base64EncodeBlob(new GeneratedBlob(1024), new CountingOutputStream());
+
+        long small = allocatedWhileEncoding(threads, 1024 * 1024);
+        long large = allocatedWhileEncoding(threads, 64 * 1024 * 1024);
+        assertThat(large).isLessThan(256 * 1024);
+        assertThat(large).isLessThan(small + 64 * 1024);
+    }
+
+    protected long allocatedWhileEncoding(com.sun.management.ThreadMXBean threads, long size) throws IOException {
+        long threadId = Thread.currentThread().getId();
+        CountingOutputStream out = new CountingOutputStream();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        base64EncodeBlob(new GeneratedBlob(size), out);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(4 * ((size + 2) / 3), out.count);
+        return allocated;
+    }
+
+    /**
+     * A blob generating its bytes on the fly, so it doesn't take any memory.
+     */
+    protected static class GeneratedBlob extends AbstractBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final long length;
+
+        public GeneratedBlob(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getStream() {
+            return new InputStream() {
+
+                protected long position;
+
+                @Override
+                public int read() {
+                    return position < length ? (int) (position++ % 251) : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (position >= length) {
+                        return -1;
+                    }
+                    int count = (int) Math.min(len, length - position);
+                    for (int i = 0; i < count; i++) {
+                        b[off + i] = (byte) (position++ % 251);
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+
+    protected static class CountingOutputStream extends OutputStream {
+
+        protected long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
     @Test
     public void testCheckNullProps() {
         DocumentModel doc = session.createDocumentModel("/", "My Not null Doc", "File");